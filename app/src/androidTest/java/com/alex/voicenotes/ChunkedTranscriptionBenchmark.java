@@ -0,0 +1,69 @@
+package com.alex.voicenotes;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+// Compares one whisper_full call against chunked parallel decoding on the same audio. Pass a real
+// recording with -e audioFile /path/to/file.{pcm,vnlc} for meaningful numbers; otherwise a
+// synthetic speech-like signal is used, which still exercises the timing of both paths.
+@RunWith(AndroidJUnit4.class)
+public class ChunkedTranscriptionBenchmark {
+    private static final String TAG = "ChunkedTranscriptionBenchmark";
+    private static final int SAMPLE_RATE = 16000;
+
+    @Test
+    public void chunkedVersusSingleCall() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        float[] audio = loadAudio(InstrumentationRegistry.getArguments());
+        int parallelism = WhisperTranscriber.getParallelism();
+
+        WhisperTranscriber transcriber = new WhisperTranscriber();
+        try {
+            transcriber.initialize(context);
+
+            long start = System.nanoTime();
+            String whole = transcriber.transcribeWholeAsync(audio, null).get();
+            long wholeMs = (System.nanoTime() - start) / 1_000_000;
+
+            start = System.nanoTime();
+            String chunked = transcriber.transcribeChunkedAsync(audio, Math.max(2, parallelism), null).get();
+            long chunkedMs = (System.nanoTime() - start) / 1_000_000;
+
+            Log.i(TAG, String.format(Locale.US,
+                    "%.0f s of audio: single call %d ms, chunked on %d states %d ms, speedup %.2fx",
+                    (double) audio.length / SAMPLE_RATE, wholeMs, Math.max(2, parallelism), chunkedMs,
+                    (double) wholeMs / chunkedMs));
+            Log.i(TAG, "Single call: " + whole);
+            Log.i(TAG, "Chunked:     " + chunked);
+            assertTrue(chunkedMs > 0 && wholeMs > 0);
+        } finally {
+            transcriber.release();
+        }
+    }
+
+    private static float[] loadAudio(Bundle arguments) throws Exception {
+        String path = arguments.getString("audioFile");
+        if (path != null) {
+            File file = new File(path);
+            if (CompressedPcmFormat.isCompressed(file)) {
+                return CompressedPcmReader.readFile(file);
+            }
+            return PcmConverter.readFile(file);
+        }
+
+        // Six minutes of harmonic bursts with pauses between them.
+        return SyntheticSpeech.generate(SAMPLE_RATE * 360, SAMPLE_RATE);
+    }
+}
@@ -0,0 +1,178 @@
+package com.alex.voicenotes;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+// Throughput of the audio-path DSP on 60 s of synthetic speech: PCM16 to float conversion against
+// the old per-sample loop, the compressed recording format, and resampling from device capture
+// rates. Numbers go to logcat; the only assertions are that each step ran.
+@RunWith(AndroidJUnit4.class)
+public class DspBenchmark {
+    private static final String TAG = "DspBenchmark";
+    private static final int SAMPLE_RATE = 16000;
+    private static final int SECONDS = 60;
+
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    @Test
+    public void pcmConversion() throws Exception {
+        byte[] pcm = toBytes(speech(SAMPLE_RATE));
+        File file = new File(cacheDir(), "benchmark.pcm");
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(pcm);
+        }
+        float[] out = new float[pcm.length / 2];
+        short[] scratch = new short[PcmConverter.CHUNK_SAMPLES];
+        ByteBuffer wrapped = ByteBuffer.wrap(pcm);
+        try {
+            long perSample = measure(() -> perSampleToFloat(pcm));
+            long bulk = measure(() -> {
+                wrapped.clear();
+                PcmConverter.toFloat(wrapped, out, 0, scratch);
+            });
+            long perSampleFile = measure(() -> perSampleToFloat(readAll(file)));
+            long chunkedFile = measure(() -> PcmConverter.readFile(file, out, 0));
+
+            Log.i(TAG, String.format(Locale.US,
+                    "PCM16->float, %d s of audio: per-sample %.2f ms, bulk %.2f ms; "
+                            + "file read+convert: per-sample %.2f ms, chunked %.2f ms",
+                    SECONDS, perSample / 1e6, bulk / 1e6, perSampleFile / 1e6, chunkedFile / 1e6));
+            assertTrue(bulk > 0 && chunkedFile > 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void compressedEncodeDecode() throws Exception {
+        ByteBuffer pcm = toDirect(toBytes(speech(SAMPLE_RATE)));
+        File file = new File(cacheDir(), "benchmark" + CompressedPcmFormat.EXTENSION);
+        try {
+            long encode = measure(() -> encode(pcm, file));
+            long decode = measure(() -> CompressedPcmReader.readFilePcm16(file));
+
+            double megabytes = pcm.capacity() / 1e6;
+            Log.i(TAG, String.format(Locale.US,
+                    "Compressed PCM, %d s of audio: ratio %.2f, encode %.1f MB/s (%.0fx realtime), decode %.1f MB/s",
+                    SECONDS, file.length() / (double) pcm.capacity(),
+                    megabytes / (encode / 1e9), SECONDS / (encode / 1e9), megabytes / (decode / 1e9)));
+            assertTrue(encode > 0 && decode > 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void resampling() throws Exception {
+        for (int inputRate : new int[]{48000, 44100}) {
+            ByteBuffer pcm = toDirect(toBytes(speech(inputRate)));
+            long nanos = measure(() -> resample(pcm, inputRate));
+
+            Log.i(TAG, String.format(Locale.US,
+                    "Resampling %d s from %d Hz to %d Hz: %.1f ms (%.0fx realtime)",
+                    SECONDS, inputRate, SAMPLE_RATE, nanos / 1e6, SECONDS / (nanos / 1e9)));
+            assertTrue(nanos > 0);
+        }
+    }
+
+    // Mean time of one run after a few warm-up runs, in ns.
+    private static long measure(Body body) throws Exception {
+        for (int i = 0; i < 3; i++) {
+            body.run();
+        }
+        int iterations = 10;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            body.run();
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    // Resamples pcm in the 100 ms chunks the capture thread hands over.
+    private static void resample(ByteBuffer pcm, int inputRate) {
+        int chunkBytes = inputRate / 10 * 2;
+        PolyphaseResampler resampler = new PolyphaseResampler(inputRate, SAMPLE_RATE);
+        ByteBuffer out = ByteBuffer.allocateDirect(resampler.maxOutputSamples(chunkBytes / 2) * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int offset = 0; offset < pcm.capacity(); offset += chunkBytes) {
+            ByteBuffer chunk = pcm.duplicate();
+            chunk.limit(Math.min(pcm.capacity(), offset + chunkBytes)).position(offset);
+            out.clear();
+            resampler.process(chunk.order(ByteOrder.LITTLE_ENDIAN), out);
+        }
+    }
+
+    // Writes pcm in the 100 ms chunks the recorder's consumer thread hands over.
+    private static void encode(ByteBuffer pcm, File file) throws Exception {
+        int chunkBytes = SAMPLE_RATE / 10 * 2;
+        try (CompressedPcmWriter writer = new CompressedPcmWriter(file, SAMPLE_RATE)) {
+            for (int offset = 0; offset < pcm.capacity(); offset += chunkBytes) {
+                ByteBuffer chunk = pcm.duplicate();
+                chunk.limit(Math.min(pcm.capacity(), offset + chunkBytes)).position(offset);
+                writer.onPcm(chunk.slice().order(ByteOrder.LITTLE_ENDIAN));
+            }
+        }
+    }
+
+    private static File cacheDir() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        return context.getCacheDir();
+    }
+
+    private static float[] speech(int sampleRate) {
+        return SyntheticSpeech.generate(sampleRate * SECONDS, sampleRate);
+    }
+
+    private static byte[] toBytes(float[] audio) {
+        ByteBuffer pcm = ByteBuffer.allocate(audio.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (float sample : audio) {
+            pcm.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample * 32768))));
+        }
+        return pcm.array();
+    }
+
+    private static ByteBuffer toDirect(byte[] pcm) {
+        ByteBuffer direct = ByteBuffer.allocateDirect(pcm.length).order(ByteOrder.LITTLE_ENDIAN);
+        direct.put(pcm).flip();
+        return direct;
+    }
+
+    private static byte[] readAll(File file) throws Exception {
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += fis.read(data, offset, data.length - offset);
+            }
+        }
+        return data;
+    }
+
+    // The ByteBuffer.getShort() loop PcmConverter replaced.
+    private static float[] perSampleToFloat(byte[] pcmData) {
+        int numSamples = pcmData.length / 2;
+        float[] floatData = new float[numSamples];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(pcmData).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < numSamples; i++) {
+            floatData[i] = byteBuffer.getShort() / 32768.0f;
+        }
+        return floatData;
+    }
+}
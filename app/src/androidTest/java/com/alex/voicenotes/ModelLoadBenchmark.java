@@ -0,0 +1,116 @@
+package com.alex.voicenotes;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.whispercpp.whisper.WhisperContext;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+import kotlin.coroutines.EmptyCoroutineContext;
+import kotlinx.coroutines.BuildersKt;
+
+import static org.junit.Assert.assertTrue;
+
+// Loads the model through whisper_init_from_file, the mmap-backed loader, a Java InputStream and,
+// when the model is bundled, straight from the APK asset. Each path runs with a cold page cache (the
+// backing file's pages dropped first) and a warm one, and the load time and the growth of the
+// process RSS, split into anonymous and file-backed pages, are logged. The context cache is
+// bypassed so each load is a real one.
+@RunWith(AndroidJUnit4.class)
+public class ModelLoadBenchmark {
+    private static final String TAG = "ModelLoadBenchmark";
+    private static final int RUNS = 3;
+
+    private interface Loader {
+        WhisperContext load() throws Exception;
+    }
+
+    @Test
+    public void compareLoadPaths() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        WhisperContextCache.evict("benchmark");
+        File model = WhisperModelManager.ensureModelAvailable(context);
+        String path = model.getAbsolutePath();
+        Log.i(TAG, "Model " + path + ", " + model.length() / (1024 * 1024) + " MB");
+
+        Loader file = () -> WhisperContext.Companion.createContextFromFile(path);
+        Loader mapped = () -> WhisperContext.Companion.createContextFromMappedFile(path);
+        Loader stream = () -> {
+            try (InputStream in = new FileInputStream(path)) {
+                return WhisperContext.Companion.createContextFromInputStream(in);
+            }
+        };
+        String[] bundled = context.getAssets().list("models");
+        String assetPath = bundled != null && Arrays.asList(bundled).contains(model.getName())
+                ? "models/" + model.getName() : null;
+        Loader asset = () -> WhisperContext.Companion.createContextFromAsset(context.getAssets(), assetPath);
+        String apkPath = context.getApplicationInfo().sourceDir;
+
+        for (int run = 0; run < RUNS; run++) {
+            for (boolean cold : new boolean[]{true, false}) {
+                measure("file", file, path, cold);
+                measure("mapped", mapped, path, cold);
+                measure("stream", stream, path, cold);
+                if (assetPath != null) {
+                    measure("asset", asset, apkPath, cold);
+                }
+            }
+        }
+    }
+
+    // backingPath is the file whose pages a cold run drops first.
+    private static void measure(String name, Loader loader, String backingPath, boolean cold) throws Exception {
+        if (cold && !WhisperContext.Companion.dropFileCache(backingPath)) {
+            Log.w(TAG, "Could not drop the page cache for " + backingPath + "; cold numbers are warm");
+        }
+        long[] before = readRss();
+        long start = System.nanoTime();
+        WhisperContext whisper = loader.load();
+        long loadMs = (System.nanoTime() - start) / 1_000_000;
+        long[] after = readRss();
+        free(whisper);
+
+        Log.i(TAG, String.format(Locale.US,
+                "%-6s %s: load %5d ms, RSS +%d MB (anon +%d MB, file +%d MB)",
+                name, cold ? "cold" : "warm", loadMs,
+                (after[0] - before[0]) / 1024, (after[1] - before[1]) / 1024, (after[2] - before[2]) / 1024));
+        assertTrue(loadMs > 0);
+    }
+
+    // VmRSS, RssAnon and RssFile from /proc/self/status, in kB.
+    private static long[] readRss() throws Exception {
+        long[] rss = new long[3];
+        String[] keys = {"VmRSS:", "RssAnon:", "RssFile:"};
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (line.startsWith(keys[i])) {
+                        rss[i] = Long.parseLong(line.substring(keys[i].length()).trim().split("\\s+")[0]);
+                    }
+                }
+            }
+        }
+        return rss;
+    }
+
+    private static void free(WhisperContext whisper) throws Exception {
+        BuildersKt.runBlocking(
+                EmptyCoroutineContext.INSTANCE,
+                (scope, continuation) -> whisper.release(continuation)
+        );
+    }
+}
@@ -0,0 +1,98 @@
+package com.alex.voicenotes;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.whispercpp.whisper.WhisperContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Cancels a long decode part way through and measures how long the context takes to become free
+// again, by timing a short decode queued right behind it. Without the native abort flag this is the
+// rest of the long decode; with it, it should be about one graph node plus the short decode itself.
+// A chunked decode holds the context thread until its workers have exited, and the test checks that
+// by watching for worker progress after the short decode has run.
+@RunWith(AndroidJUnit4.class)
+public class TranscriptionCancelLatencyTest {
+    private static final String TAG = "TranscriptionCancelLatencyTest";
+    private static final int SAMPLE_RATE = 16000;
+    private static final long RUN_BEFORE_CANCEL_MS = 3000;
+    private static final long MAX_CANCEL_LATENCY_MS = 1500;
+    // Long enough for a still-running chunk worker to report progress at least once.
+    private static final long WORKER_QUIET_MS = 3000;
+
+    private Context context;
+    private WhisperContext whisper;
+    private float[] longAudio;
+    private float[] shortAudio;
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        whisper = WhisperContextCache.acquire(context);
+        longAudio = SyntheticSpeech.generate(SAMPLE_RATE * 300, SAMPLE_RATE);
+        shortAudio = SyntheticSpeech.generate(SAMPLE_RATE * 2, SAMPLE_RATE);
+    }
+
+    @After
+    public void tearDown() {
+        WhisperContextCache.release(context);
+    }
+
+    @Test
+    public void cancelWholeDecodeFreesContextQuickly() throws Exception {
+        long baselineMs = timeShortDecode();
+        CompletableFuture<String> running = whisper.transcribeAsync(longAudio);
+        Thread.sleep(RUN_BEFORE_CANCEL_MS);
+        assertCancelLatency("whole", running, baselineMs);
+    }
+
+    @Test
+    public void cancelChunkedDecodeFreesContextQuickly() throws Exception {
+        WhisperTranscriber transcriber = new WhisperTranscriber();
+        transcriber.initialize(context);
+        try {
+            long baselineMs = timeShortDecode();
+            AtomicInteger workerProgress = new AtomicInteger();
+            CompletableFuture<String> running = transcriber.transcribeChunkedAsync(longAudio, 2,
+                    progress -> workerProgress.incrementAndGet());
+            Thread.sleep(RUN_BEFORE_CANCEL_MS);
+            assertTrue("chunk workers never reported progress", workerProgress.get() > 0);
+            assertCancelLatency("chunked", running, baselineMs);
+
+            // The short decode only ran once the workers had exited, so none may report after it.
+            int reported = workerProgress.get();
+            Thread.sleep(WORKER_QUIET_MS);
+            assertEquals("chunk workers still running after the context was free",
+                    reported, workerProgress.get());
+        } finally {
+            transcriber.release();
+        }
+    }
+
+    private void assertCancelLatency(String mode, CompletableFuture<String> running, long baselineMs)
+            throws Exception {
+        assertTrue("decode finished before it could be cancelled", running.cancel(true));
+        long latencyMs = timeShortDecode() - baselineMs;
+        Log.i(TAG, mode + ": context free " + latencyMs + " ms after cancel (short decode " + baselineMs + " ms)");
+        assertTrue(mode + " cancel took " + latencyMs + " ms", latencyMs < MAX_CANCEL_LATENCY_MS);
+    }
+
+    private long timeShortDecode() throws Exception {
+        long start = System.nanoTime();
+        whisper.transcribeAsync(shortAudio).get();
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+}
@@ -0,0 +1,96 @@
+package com.alex.voicenotes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+public class AppSettings {
+
+    private static final String PREFS_NAME = "VoiceNotesPrefs";
+    private static final String PREF_TRIM_SILENCE = "trim_silence";
+    private static final String PREF_COMPRESS_QUEUE = "compress_queue";
+    private static final String PREF_LIVE_TRANSCRIPTION = "live_transcription";
+    private static final String PREF_MODEL_IDLE_TIMEOUT_MS = "model_idle_timeout_ms";
+    private static final String PREF_DECODING_PROFILE = "decoding_profile";
+    private static final String PREF_DETECT_LANGUAGE = "detect_language";
+    private static final String PREF_MODEL_PREFIX = "model_";
+    private static final String PREF_CALIBRATED_THREADS_PREFIX = "calibrated_threads_";
+    private static final String DEFAULT_LANGUAGE = "en";
+    private static final long DEFAULT_MODEL_IDLE_TIMEOUT_MS = 2 * 60 * 1000;
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static boolean isTrimSilenceEnabled(Context context) {
+        return prefs(context).getBoolean(PREF_TRIM_SILENCE, true);
+    }
+
+    public static void setTrimSilenceEnabled(Context context, boolean enabled) {
+        prefs(context).edit().putBoolean(PREF_TRIM_SILENCE, enabled).apply();
+    }
+
+    public static boolean isLiveTranscriptionEnabled(Context context) {
+        return prefs(context).getBoolean(PREF_LIVE_TRANSCRIPTION, true);
+    }
+
+    public static void setLiveTranscriptionEnabled(Context context, boolean enabled) {
+        prefs(context).edit().putBoolean(PREF_LIVE_TRANSCRIPTION, enabled).apply();
+    }
+
+    public static boolean isCompressQueueEnabled(Context context) {
+        return prefs(context).getBoolean(PREF_COMPRESS_QUEUE, true);
+    }
+
+    public static void setCompressQueueEnabled(Context context, boolean enabled) {
+        prefs(context).edit().putBoolean(PREF_COMPRESS_QUEUE, enabled).apply();
+    }
+
+    // How long a loaded Whisper model stays in memory after the last transcription.
+    public static long getModelIdleTimeoutMs(Context context) {
+        return prefs(context).getLong(PREF_MODEL_IDLE_TIMEOUT_MS, DEFAULT_MODEL_IDLE_TIMEOUT_MS);
+    }
+
+    public static void setModelIdleTimeoutMs(Context context, long timeoutMs) {
+        prefs(context).edit().putLong(PREF_MODEL_IDLE_TIMEOUT_MS, Math.max(0, timeoutMs)).apply();
+    }
+
+    public static DecodingProfile getDecodingProfile(Context context) {
+        return DecodingProfile.fromName(prefs(context).getString(PREF_DECODING_PROFILE, null));
+    }
+
+    public static void setDecodingProfile(Context context, DecodingProfile profile) {
+        prefs(context).edit().putString(PREF_DECODING_PROFILE, profile.name()).apply();
+    }
+
+    // The model chosen for profile, or null if the user has not picked one.
+    public static WhisperModel getModel(Context context, DecodingProfile profile) {
+        return WhisperModel.fromName(prefs(context).getString(PREF_MODEL_PREFIX + profile.name(), null));
+    }
+
+    public static void setModel(Context context, DecodingProfile profile, WhisperModel model) {
+        prefs(context).edit().putString(PREF_MODEL_PREFIX + profile.name(), model.name()).apply();
+    }
+
+    // The thread count measured for a device, app version and model combination, or 0 if that
+    // combination has not been calibrated.
+    public static int getCalibratedThreads(Context context, String calibrationKey) {
+        return prefs(context).getInt(PREF_CALIBRATED_THREADS_PREFIX + calibrationKey, 0);
+    }
+
+    public static void setCalibratedThreads(Context context, String calibrationKey, int threads) {
+        prefs(context).edit().putInt(PREF_CALIBRATED_THREADS_PREFIX + calibrationKey, threads).apply();
+    }
+
+    public static boolean isDetectLanguageEnabled(Context context) {
+        return prefs(context).getBoolean(PREF_DETECT_LANGUAGE, false);
+    }
+
+    public static void setDetectLanguageEnabled(Context context, boolean enabled) {
+        prefs(context).edit().putBoolean(PREF_DETECT_LANGUAGE, enabled).apply();
+    }
+
+    // The whisper language code to decode with, or null to detect it per recording.
+    public static String getTranscriptionLanguage(Context context) {
+        return isDetectLanguageEnabled(context) ? null : DEFAULT_LANGUAGE;
+    }
+}
@@ -0,0 +1,136 @@
+package com.alex.voicenotes;
+
+import com.whispercpp.whisper.WhisperSegment;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Splits long recordings into chunks that can be transcribed independently and stitches the results
+// back together. Cuts are placed at the quietest frame near each target length so they rarely fall
+// inside a word, and each chunk after the first starts a little before the cut; the words decoded
+// twice in that overlap are dropped again when merging.
+public final class AudioChunker {
+    private static final int FRAME_MS = 20;
+    // Later segments ending this close to the end of already-merged text are treated as repeats.
+    private static final long OVERLAP_TOLERANCE_MS = 200;
+
+    public static final class Chunk {
+        public final int start;
+        public final int end;
+
+        Chunk(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // Lets the float and PCM16 planners share one search; only relative frame energies matter, so
+    // the two sample scales need not agree.
+    private interface Samples {
+        float get(int index);
+    }
+
+    private AudioChunker() {
+    }
+
+    // Plans chunks of roughly targetSamples. Each cut is the quietest frame within searchSamples of
+    // its target, and every chunk but the first starts overlapSamples before the previous cut.
+    public static List<Chunk> split(float[] samples, int sampleRate, int targetSamples,
+                                    int searchSamples, int overlapSamples) {
+        return split(i -> samples[i], samples.length, sampleRate, targetSamples, searchSamples, overlapSamples);
+    }
+
+    // The same plan over PCM16 samples, for recordings that stay memory-mapped.
+    public static List<Chunk> split(ShortBuffer samples, int sampleRate, int targetSamples,
+                                    int searchSamples, int overlapSamples) {
+        return split(samples::get, samples.limit(), sampleRate, targetSamples, searchSamples, overlapSamples);
+    }
+
+    private static List<Chunk> split(Samples samples, int length, int sampleRate, int targetSamples,
+                                     int searchSamples, int overlapSamples) {
+        int frame = sampleRate * FRAME_MS / 1000;
+        List<Chunk> chunks = new ArrayList<>();
+        int start = 0;
+        int cutFrom = 0;
+        while (length - cutFrom > targetSamples + searchSamples) {
+            int from = Math.max(cutFrom + frame, cutFrom + targetSamples - searchSamples);
+            int to = Math.min(length - frame, cutFrom + targetSamples + searchSamples);
+            int cut = quietestFrame(samples, from, to, frame);
+            chunks.add(new Chunk(start, cut));
+            start = Math.max(cutFrom, cut - overlapSamples);
+            cutFrom = cut;
+        }
+        chunks.add(new Chunk(start, length));
+        return chunks;
+    }
+
+    public static float[] copyOf(float[] samples, Chunk chunk) {
+        float[] out = new float[chunk.end - chunk.start];
+        System.arraycopy(samples, chunk.start, out, 0, out.length);
+        return out;
+    }
+
+    // Zero-copy view of one chunk of PCM16 audio.
+    public static ByteBuffer slice(ByteBuffer pcm16, Chunk chunk) {
+        ByteBuffer view = pcm16.duplicate();
+        view.limit(chunk.end * 2).position(chunk.start * 2);
+        return view.slice().order(pcm16.order());
+    }
+
+    // Joins per-chunk segments, whose times are relative to their chunk, in time order and drops
+    // the ones repeated from a previous chunk's overlap.
+    public static List<WhisperSegment> merge(List<Chunk> chunks, List<List<WhisperSegment>> results,
+                                             int sampleRate) {
+        List<WhisperSegment> merged = new ArrayList<>();
+        long coveredUntilMs = Long.MIN_VALUE;
+        String lastText = null;
+        for (int c = 0; c < chunks.size(); c++) {
+            long offsetMs = chunks.get(c).start * 1000L / sampleRate;
+            for (WhisperSegment segment : results.get(c)) {
+                long startMs = segment.getStartMs() + offsetMs;
+                long endMs = segment.getEndMs() + offsetMs;
+                String text = normalize(segment.getText());
+                if (text.isEmpty() || endMs <= coveredUntilMs + OVERLAP_TOLERANCE_MS
+                        || (text.equals(lastText) && startMs < coveredUntilMs + OVERLAP_TOLERANCE_MS)) {
+                    continue;
+                }
+                merged.add(new WhisperSegment(startMs, endMs, segment.getText(), segment.getProbability()));
+                coveredUntilMs = Math.max(coveredUntilMs, endMs);
+                lastText = text;
+            }
+        }
+        return merged;
+    }
+
+    public static String joinText(List<WhisperSegment> segments) {
+        StringBuilder text = new StringBuilder();
+        for (WhisperSegment segment : segments) {
+            text.append(segment.getText());
+        }
+        return text.toString().trim();
+    }
+
+    private static int quietestFrame(Samples samples, int from, int to, int frame) {
+        int best = from;
+        double bestEnergy = Double.MAX_VALUE;
+        for (int pos = from; pos + frame <= to; pos += frame) {
+            double energy = 0;
+            for (int i = pos; i < pos + frame; i++) {
+                double sample = samples.get(i);
+                energy += sample * sample;
+            }
+            if (energy < bestEnergy) {
+                bestEnergy = energy;
+                best = pos + frame / 2;
+            }
+        }
+        return best;
+    }
+
+    private static String normalize(String text) {
+        return text.trim().toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{N} ]", "");
+    }
+}
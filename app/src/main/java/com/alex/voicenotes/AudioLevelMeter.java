@@ -0,0 +1,71 @@
+package com.alex.voicenotes;
+
+import java.nio.ByteBuffer;
+
+// RMS and peak of the most recent stretch of recorded audio, written by the recorder's consumer
+// thread and read by the UI at its own frame rate. The sums come from a loop that already reads the
+// samples (the resampler or the VAD) whenever there is one, so metering costs no pass of its own.
+// Both levels are packed into one volatile long so readers always see a matching pair without
+// locking, and a slow reader simply skips updates instead of queueing them.
+public final class AudioLevelMeter {
+    public static final float SILENCE_DB = -100f;
+    private static final float SCALE = 1.0f / 32768.0f;
+
+    private volatile long levels;
+
+    // Measures the PCM16 LE samples in pcm[0, bytes) and publishes them as the latest levels.
+    // Uses absolute reads, so the buffer's position and limit are left alone.
+    public void update(ByteBuffer pcm, int bytes) {
+        int end = bytes & ~1;
+        if (end == 0) {
+            return;
+        }
+        long sumSquares = 0;
+        int peak = 0;
+        for (int i = 0; i < end; i += 2) {
+            int sample = pcm.getShort(i);
+            sumSquares += sample * sample;
+            int magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+        }
+        publish(sumSquares, peak, end / 2);
+    }
+
+    // Publishes levels summed by the caller over samples PCM16 samples: the sum of their squares and
+    // the largest magnitude.
+    public void publish(long sumSquares, int peak, int samples) {
+        if (samples <= 0) {
+            return;
+        }
+        float rms = (float) Math.sqrt((double) sumSquares / samples) * SCALE;
+        publishLevels(rms, Math.min(1f, peak * SCALE));
+    }
+
+    public void reset() {
+        levels = 0;
+    }
+
+    // Returns the latest rms/peak pair, to be unpacked with rmsOf() and peakOf().
+    public long getLevels() {
+        return levels;
+    }
+
+    public static float rmsOf(long levels) {
+        return Float.intBitsToFloat((int) (levels >>> 32));
+    }
+
+    public static float peakOf(long levels) {
+        return Float.intBitsToFloat((int) levels);
+    }
+
+    public static float toDb(float level) {
+        return level > 0 ? Math.max(SILENCE_DB, (float) (20 * Math.log10(level))) : SILENCE_DB;
+    }
+
+    private void publishLevels(float rms, float peak) {
+        levels = ((long) Float.floatToRawIntBits(rms) << 32)
+                | (Float.floatToRawIntBits(peak) & 0xffffffffL);
+    }
+}
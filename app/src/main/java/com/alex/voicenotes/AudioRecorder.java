@@ -3,72 +3,273 @@ package com.alex.voicenotes;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
+import android.os.Process;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 public class AudioRecorder {
     private static final String TAG = "AudioRecorder";
+    // Rate of everything downstream of capture: consumers, the VAD and the output file.
     private static final int SAMPLE_RATE = 16000;
+    // Tried in order after the preferred rate. 16 kHz is last because many devices only emulate it
+    // with a poor HAL resampler; when nothing else works the audio is used without resampling.
+    private static final int[] FALLBACK_CAPTURE_RATES = {48000, 44100, 16000};
     private static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_MONO;
     private static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    private static final int POOL_SIZE = 32;
+    private static final long CONSUMER_PARK_NANOS = 20_000_000L;
+    private static final long CAPTURE_PARK_NANOS = 2_000_000L;
+    // Sync the output file every few seconds of audio so a crash or reboot loses little of it.
+    private static final long FORCE_INTERVAL_BYTES = SAMPLE_RATE * 2 * 5;
 
+    private final List<PcmConsumer> consumers = new ArrayList<>();
+    private final AudioLevelMeter levelMeter = new AudioLevelMeter();
     private AudioRecord audioRecord;
-    private boolean isRecording = false;
+    private int preferredCaptureRate;
+    private int captureRate;
+    private PolyphaseResampler resampler;
+    private ByteBuffer resampled;
+    private volatile boolean isRecording = false;
+    private volatile boolean captureFinished;
     private Thread recordingThread;
-    private ByteArrayOutputStream audioData;
+    private Thread consumerThread;
+    private PcmSink fileWriter;
+    private boolean compressedOutput;
+    private VoiceActivityDetector.Config vadConfig;
+    private VoiceActivityDetector voiceActivityDetector;
+    private PcmBufferRing freeBuffers;
+    private PcmBufferRing filledBuffers;
+    private volatile int captureStalls;
+    private volatile IOException writeError;
 
-    public void startRecording() {
+    public void addConsumer(PcmConsumer consumer) {
+        consumers.add(consumer);
+    }
+
+    // When set, the queue file only receives speech regions; other consumers still see every chunk.
+    public void setVoiceActivityDetection(VoiceActivityDetector.Config config) {
+        vadConfig = config;
+    }
+
+    // Writes the output file in CompressedPcmFormat instead of raw PCM.
+    public void setCompressedOutput(boolean compressed) {
+        compressedOutput = compressed;
+    }
+
+    // The device's native input rate, e.g. AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE. Capture runs at
+    // this rate when the device accepts it and is resampled to 16 kHz on the consumer thread.
+    public void setPreferredCaptureRate(int sampleRate) {
+        preferredCaptureRate = sampleRate;
+    }
+
+    // Levels of the latest recorded audio, updated on the consumer thread.
+    public AudioLevelMeter getLevelMeter() {
+        return levelMeter;
+    }
+
+    public VoiceActivityDetector getVoiceActivityDetector() {
+        return voiceActivityDetector;
+    }
+
+    public void startRecording(File outputFile) throws IOException {
         if (isRecording) {
             Log.w(TAG, "Already recording");
             return;
         }
 
-        int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, CHANNEL_CONFIG, AUDIO_FORMAT);
-        final int bufferSize = Math.max(minBufferSize, SAMPLE_RATE * 2);
+        audioRecord = openAudioRecord();
 
-        audioRecord = new AudioRecord(
-                MediaRecorder.AudioSource.MIC,
-                SAMPLE_RATE,
-                CHANNEL_CONFIG,
-                AUDIO_FORMAT,
-                bufferSize
-        );
+        try {
+            fileWriter = compressedOutput
+                    ? new CompressedPcmWriter(outputFile, SAMPLE_RATE)
+                    : new PcmFileWriter(outputFile);
+        } catch (IOException e) {
+            audioRecord.release();
+            audioRecord = null;
+            throw e;
+        }
 
-        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
-            Log.e(TAG, "AudioRecord failed to initialize");
-            return;
+        int chunkBytes = captureRate / 10 * 2;
+        freeBuffers = new PcmBufferRing(POOL_SIZE);
+        filledBuffers = new PcmBufferRing(POOL_SIZE);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            freeBuffers.offer(ByteBuffer.allocateDirect(chunkBytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        if (captureRate != SAMPLE_RATE) {
+            resampler = new PolyphaseResampler(captureRate, SAMPLE_RATE);
+            resampled = ByteBuffer.allocateDirect(resampler.maxOutputSamples(chunkBytes / 2) * 2)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            resampler = null;
+            resampled = null;
+        }
+
+        voiceActivityDetector = vadConfig != null
+                ? new VoiceActivityDetector(vadConfig, SAMPLE_RATE, fileWriter)
+                : null;
+        // The meter rides on the first loop that reads every sample anyway. Only raw 16 kHz output
+        // without VAD has none (the raw writer copies whole buffers), so drainBuffers measures.
+        boolean metered = true;
+        if (resampler != null) {
+            resampler.setLevelMeter(levelMeter);
+        } else if (voiceActivityDetector != null) {
+            voiceActivityDetector.setLevelMeter(levelMeter);
+        } else if (fileWriter instanceof CompressedPcmWriter) {
+            ((CompressedPcmWriter) fileWriter).setLevelMeter(levelMeter);
+        } else {
+            metered = false;
         }
+        final AudioLevelMeter meter = metered ? null : levelMeter;
 
-        audioData = new ByteArrayOutputStream();
+        final PcmConsumer[] pipeline = new PcmConsumer[consumers.size() + 1];
+        pipeline[0] = voiceActivityDetector != null ? voiceActivityDetector : fileWriter;
+        for (int i = 0; i < consumers.size(); i++) {
+            pipeline[i + 1] = consumers.get(i);
+        }
+
+        captureStalls = 0;
+        captureFinished = false;
+        writeError = null;
         isRecording = true;
+
+        consumerThread = new Thread(() -> drainBuffers(pipeline, meter), "AudioRecorderConsumer");
+        consumerThread.start();
+
         audioRecord.startRecording();
+        recordingThread = new Thread(this::captureAudio, "AudioRecorder");
+        recordingThread.start();
+
+        Log.d(TAG, "Recording started at " + captureRate + " Hz, streaming to " + outputFile.getName());
+    }
 
-        recordingThread = new Thread(() -> {
-            byte[] buffer = new byte[bufferSize];
-            while (isRecording) {
-                int bytesRead = audioRecord.read(buffer, 0, buffer.length);
-                if (bytesRead > 0) {
-                    synchronized (audioData) {
-                        audioData.write(buffer, 0, bytesRead);
+    private AudioRecord openAudioRecord() throws IOException {
+        int[] rates = new int[FALLBACK_CAPTURE_RATES.length + 1];
+        rates[0] = preferredCaptureRate;
+        System.arraycopy(FALLBACK_CAPTURE_RATES, 0, rates, 1, FALLBACK_CAPTURE_RATES.length);
+        for (int i = 0; i < rates.length; i++) {
+            int rate = rates[i];
+            if (rate <= 0 || (i > 0 && rate == rates[0])) {
+                continue;
+            }
+            int minBufferSize = AudioRecord.getMinBufferSize(rate, CHANNEL_CONFIG, AUDIO_FORMAT);
+            if (minBufferSize <= 0) {
+                Log.d(TAG, "Capture at " + rate + " Hz not supported");
+                continue;
+            }
+            AudioRecord record;
+            try {
+                record = new AudioRecord(
+                        MediaRecorder.AudioSource.MIC,
+                        rate,
+                        CHANNEL_CONFIG,
+                        AUDIO_FORMAT,
+                        Math.max(minBufferSize, rate * 2)
+                );
+            } catch (IllegalArgumentException e) {
+                Log.d(TAG, "Capture at " + rate + " Hz rejected", e);
+                continue;
+            }
+            if (record.getState() == AudioRecord.STATE_INITIALIZED) {
+                captureRate = rate;
+                return record;
+            }
+            Log.w(TAG, "AudioRecord failed to initialize at " + rate + " Hz");
+            record.release();
+        }
+        Log.e(TAG, "AudioRecord failed to initialize");
+        throw new IOException("AudioRecord failed to initialize");
+    }
+
+    private void captureAudio() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        final AudioRecord record = audioRecord;
+        final PcmBufferRing free = freeBuffers;
+        final PcmBufferRing filled = filledBuffers;
+        final Thread consumer = consumerThread;
+        int stalls = 0;
+        while (isRecording) {
+            ByteBuffer buffer = free.poll();
+            if (buffer == null) {
+                stalls++;
+                LockSupport.unpark(consumer);
+                LockSupport.parkNanos(CAPTURE_PARK_NANOS);
+                continue;
+            }
+            int bytesRead = record.read(buffer, buffer.capacity());
+            if (bytesRead > 0) {
+                buffer.limit(bytesRead);
+                filled.offer(buffer);
+                LockSupport.unpark(consumer);
+            } else {
+                free.offer(buffer);
+            }
+        }
+        captureStalls = stalls;
+        captureFinished = true;
+        LockSupport.unpark(consumer);
+    }
+
+    // meter is set when no consumer measures the levels as part of its own pass.
+    private void drainBuffers(PcmConsumer[] pipeline, AudioLevelMeter meter) {
+        final PcmBufferRing free = freeBuffers;
+        final PcmBufferRing filled = filledBuffers;
+        final PcmSink sink = fileWriter;
+        final PolyphaseResampler resampler = this.resampler;
+        final ByteBuffer resampled = this.resampled;
+        long unsyncedBytes = 0;
+        while (true) {
+            ByteBuffer buffer = filled.poll();
+            if (buffer == null) {
+                if (captureFinished && filled.isEmpty()) {
+                    return;
+                }
+                LockSupport.parkNanos(this, CONSUMER_PARK_NANOS);
+                continue;
+            }
+            if (writeError == null) {
+                ByteBuffer chunk = buffer;
+                if (resampler != null) {
+                    resampled.clear();
+                    resampler.process(buffer, resampled);
+                    resampled.flip();
+                    chunk = resampled;
+                }
+                int limit = chunk.limit();
+                if (meter != null) {
+                    meter.update(chunk, limit);
+                }
+                try {
+                    for (PcmConsumer consumer : pipeline) {
+                        chunk.position(0).limit(limit);
+                        consumer.onPcm(chunk);
                     }
+                    unsyncedBytes += limit;
+                    if (unsyncedBytes >= FORCE_INTERVAL_BYTES) {
+                        sink.force();
+                        unsyncedBytes = 0;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to consume audio chunk", e);
+                    writeError = e;
+                    isRecording = false;
                 }
             }
-        }, "AudioRecorder");
-        recordingThread.start();
-
-        Log.d(TAG, "Recording started");
+            buffer.clear();
+            free.offer(buffer);
+        }
     }
 
-    public byte[] stopRecording() {
-        if (!isRecording) {
+    public long stopRecording() throws IOException {
+        if (recordingThread == null) {
             Log.w(TAG, "Not recording");
-            return new byte[0];
+            return 0;
         }
 
         isRecording = false;
@@ -78,64 +279,51 @@ public class AudioRecorder {
         } catch (InterruptedException e) {
             Log.e(TAG, "Error waiting for recording thread", e);
         }
+        recordingThread = null;
 
         if (audioRecord != null) {
             audioRecord.stop();
             audioRecord.release();
             audioRecord = null;
         }
+        levelMeter.reset();
 
-        byte[] result;
-        synchronized (audioData) {
-            result = audioData.toByteArray();
+        captureFinished = true;
+        LockSupport.unpark(consumerThread);
+        try {
+            consumerThread.join(2000);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Error waiting for consumer thread", e);
         }
-        Log.d(TAG, "Recording stopped, bytes: " + result.length);
-        return result;
-    }
+        consumerThread = null;
 
-    public boolean isRecording() {
-        return isRecording;
-    }
+        if (voiceActivityDetector != null && writeError == null) {
+            try {
+                voiceActivityDetector.finish();
+            } catch (IOException e) {
+                writeError = e;
+            }
+        }
 
-    public static float[] pcmToFloat(byte[] pcmData) {
-        int numSamples = pcmData.length / 2;
-        float[] floatData = new float[numSamples];
-        ByteBuffer byteBuffer = ByteBuffer.wrap(pcmData).order(ByteOrder.LITTLE_ENDIAN);
+        long bytesWritten = fileWriter.getBytesWritten();
+        fileWriter.close();
+        fileWriter = null;
+        freeBuffers = null;
+        filledBuffers = null;
+        resampler = null;
+        resampled = null;
 
-        for (int i = 0; i < numSamples; i++) {
-            short sample = byteBuffer.getShort();
-            floatData[i] = sample / 32768.0f;
+        if (writeError != null) {
+            throw writeError;
         }
-        return floatData;
-    }
-
-    public static void saveWavFile(byte[] pcmData, File outputFile) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            int dataLength = pcmData.length;
-            int totalLength = dataLength + 36;
-
-            fos.write(new byte[]{'R', 'I', 'F', 'F'});
-            fos.write(intToBytes(totalLength));
-            fos.write(new byte[]{'W', 'A', 'V', 'E'});
-            fos.write(new byte[]{'f', 'm', 't', ' '});
-            fos.write(intToBytes(16));
-            fos.write(shortToBytes((short) 1));
-            fos.write(shortToBytes((short) 1));
-            fos.write(intToBytes(SAMPLE_RATE));
-            fos.write(intToBytes(SAMPLE_RATE * 2));
-            fos.write(shortToBytes((short) 2));
-            fos.write(shortToBytes((short) 16));
-            fos.write(new byte[]{'d', 'a', 't', 'a'});
-            fos.write(intToBytes(dataLength));
-            fos.write(pcmData);
+        if (captureStalls > 0) {
+            Log.w(TAG, "Capture waited for free buffers " + captureStalls + " times");
         }
+        Log.d(TAG, "Recording stopped, bytes: " + bytesWritten);
+        return bytesWritten;
     }
 
-    private static byte[] intToBytes(int value) {
-        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
-    }
-
-    private static byte[] shortToBytes(short value) {
-        return ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN).putShort(value).array();
+    public boolean isRecording() {
+        return isRecording;
     }
 }
@@ -0,0 +1,67 @@
+package com.alex.voicenotes;
+
+import java.io.File;
+
+// Lossless container for queued 16-bit mono PCM, modelled on FLAC's fixed predictors and Rice
+// coding. All multi-byte fields are little-endian.
+//
+// A file is one or more streams back to back, so segment files can be joined by concatenation.
+// Each stream is a header followed by blocks:
+//
+//   header:  "VNLC" | u8 version | 3 reserved | i32 sample rate | i64 samples | i64 payload bytes
+//            (samples and payload bytes are -1 until the writer closes cleanly)
+//   block:   u8 tag | u16 sample count | body, padded to a byte boundary
+//            tag 0xA0..0xA4: fixed predictor of that order; body is the warm-up samples as i16,
+//                            a u8 Rice parameter and the Rice-coded zigzag residuals (MSB first)
+//            tag 0xAF:       verbatim i16 samples
+final class CompressedPcmFormat {
+    static final String EXTENSION = ".vnlc";
+    static final byte[] MAGIC = {'V', 'N', 'L', 'C'};
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 28;
+    static final int BLOCK_SAMPLES = 4096;
+    static final int MAX_ORDER = 4;
+    static final int MAX_RICE_PARAMETER = 30;
+    static final int TAG_PREDICTED = 0xA0;
+    static final int TAG_VERBATIM = 0xAF;
+    static final int TAG_MASK = 0xF0;
+
+    private CompressedPcmFormat() {
+    }
+
+    static boolean isCompressed(File file) {
+        return file.getName().endsWith(EXTENSION);
+    }
+
+    // Residual of the fixed polynomial predictor of the given order at index i (i >= order).
+    static int residual(int[] x, int i, int order) {
+        switch (order) {
+            case 0:
+                return x[i];
+            case 1:
+                return x[i] - x[i - 1];
+            case 2:
+                return x[i] - 2 * x[i - 1] + x[i - 2];
+            case 3:
+                return x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+            default:
+                return x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+        }
+    }
+
+    // Inverse of residual(): rebuilds x[i] from the residual and the previous samples.
+    static int restore(int[] x, int i, int order, int residual) {
+        switch (order) {
+            case 0:
+                return residual;
+            case 1:
+                return residual + x[i - 1];
+            case 2:
+                return residual + 2 * x[i - 1] - x[i - 2];
+            case 3:
+                return residual + 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+            default:
+                return residual + 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+        }
+    }
+}
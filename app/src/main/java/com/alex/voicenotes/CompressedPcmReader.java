@@ -0,0 +1,353 @@
+package com.alex.voicenotes;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.alex.voicenotes.CompressedPcmFormat.BLOCK_SAMPLES;
+import static com.alex.voicenotes.CompressedPcmFormat.HEADER_BYTES;
+import static com.alex.voicenotes.CompressedPcmFormat.MAGIC;
+import static com.alex.voicenotes.CompressedPcmFormat.TAG_MASK;
+import static com.alex.voicenotes.CompressedPcmFormat.TAG_PREDICTED;
+import static com.alex.voicenotes.CompressedPcmFormat.TAG_VERBATIM;
+
+// Streaming decoder for CompressedPcmFormat that writes straight into float buffers, one block at
+// a time. A stream cut off mid-block (for example by a crash while recording) ends cleanly at the
+// last complete block.
+public class CompressedPcmReader implements Closeable {
+    private static final float SCALE = 1.0f / 32768.0f;
+
+    private final FileChannel channel;
+    private final ByteBuffer input = ByteBuffer.allocate(64 * 1024);
+    private final int[] block = new int[BLOCK_SAMPLES];
+    private int blockSize;
+    private int blockPos;
+    private long bitBuffer;
+    private int bitCount;
+    private int sampleRate;
+    private boolean truncated;
+    private long bytesRead;
+
+    public CompressedPcmReader(File file) throws IOException {
+        channel = new FileInputStream(file).getChannel();
+        input.flip();
+        try {
+            if (readBits(8) != MAGIC[0]) {
+                throw new IOException("Not a compressed PCM file: " + file.getName());
+            }
+            readHeader();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    // Decodes up to length samples into out. Returns the number decoded, or -1 at end of file.
+    public int read(float[] out, int offset, int length) throws IOException {
+        int written = 0;
+        while (written < length) {
+            if (blockPos == blockSize && !decodeNextBlock()) {
+                break;
+            }
+            int n = Math.min(length - written, blockSize - blockPos);
+            int base = offset + written;
+            for (int i = 0; i < n; i++) {
+                out[base + i] = block[blockPos + i] * SCALE;
+            }
+            blockPos += n;
+            written += n;
+        }
+        return written == 0 && length > 0 ? -1 : written;
+    }
+
+    // Decodes samples as little-endian PCM16 into out until it is full or the file ends. Returns the
+    // number decoded, or -1 at end of file.
+    public int read(ByteBuffer out) throws IOException {
+        int written = 0;
+        while (out.remaining() >= 2) {
+            if (blockPos == blockSize && !decodeNextBlock()) {
+                break;
+            }
+            int n = Math.min(out.remaining() / 2, blockSize - blockPos);
+            for (int i = 0; i < n; i++) {
+                out.putShort((short) block[blockPos + i]);
+            }
+            blockPos += n;
+            written += n;
+        }
+        return written == 0 && out.remaining() >= 2 ? -1 : written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Sums the sample counts in the stream headers without decoding. Returns -1 if any stream was
+    // not closed cleanly, in which case only a full decode can tell.
+    public static long countSamples(File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long total = 0;
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    if (channel.read(header, position + header.position()) < 0) {
+                        return -1;
+                    }
+                }
+                long samples = header.getLong(12);
+                long payload = header.getLong(20);
+                if (header.get(0) != MAGIC[0] || samples < 0 || payload < 0) {
+                    return -1;
+                }
+                total += samples;
+                position += HEADER_BYTES + payload;
+            }
+        }
+        return total;
+    }
+
+    // Repairs a single stream that a crash left open: keeps every block up to the first one that is
+    // torn or does not parse (a crash often leaves the tail zero-filled or holding stale data),
+    // truncates the file there and patches the header with the real sample and payload counts.
+    // Returns the samples kept. Only a file whose header cannot be read throws.
+    public static long finalizeStream(File file) throws IOException {
+        long samples = countSamples(file);
+        if (samples >= 0) {
+            return samples;
+        }
+        samples = 0;
+        long validEnd;
+        try (CompressedPcmReader reader = new CompressedPcmReader(file)) {
+            validEnd = HEADER_BYTES;
+            while (true) {
+                try {
+                    if (!reader.decodeNextBlock()) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    break;
+                }
+                samples += reader.blockSize;
+                validEnd = reader.bytesRead - reader.input.remaining() - (reader.bitCount >> 3);
+            }
+        }
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            channel.truncate(validEnd);
+            ByteBuffer counts = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            counts.putLong(samples).putLong(validEnd - HEADER_BYTES).flip();
+            long position = HEADER_BYTES - counts.remaining();
+            while (counts.hasRemaining()) {
+                position += channel.write(counts, position);
+            }
+            channel.force(true);
+        }
+        return samples;
+    }
+
+    public static float[] readFile(File file) throws IOException {
+        long total = countSamples(file);
+        try (CompressedPcmReader reader = new CompressedPcmReader(file)) {
+            if (total >= 0) {
+                if (total > Integer.MAX_VALUE) {
+                    throw new IOException("Compressed PCM file too large: " + total + " samples");
+                }
+                float[] out = new float[(int) total];
+                int read = Math.max(0, reader.read(out, 0, out.length));
+                if (read != out.length) {
+                    throw new IOException("Expected " + total + " samples but decoded " + read);
+                }
+                return out;
+            }
+
+            // Not closed cleanly, so the length is unknown until the whole file is decoded.
+            float[] out = new float[BLOCK_SAMPLES * 16];
+            int size = 0;
+            int read;
+            while ((read = reader.read(out, size, out.length - size)) > 0) {
+                size += read;
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+            }
+            return Arrays.copyOf(out, size);
+        }
+    }
+
+    // Decodes the whole file into a direct little-endian PCM16 buffer, which takes half the memory of
+    // readFile's float[] and lives outside the Java heap.
+    public static ByteBuffer readFilePcm16(File file) throws IOException {
+        long total = countSamples(file);
+        try (CompressedPcmReader reader = new CompressedPcmReader(file)) {
+            if (total >= 0) {
+                if (total > Integer.MAX_VALUE / 2) {
+                    throw new IOException("Compressed PCM file too large: " + total + " samples");
+                }
+                ByteBuffer out = ByteBuffer.allocateDirect((int) total * 2).order(ByteOrder.LITTLE_ENDIAN);
+                int read = Math.max(0, reader.read(out));
+                if (read != total) {
+                    throw new IOException("Expected " + total + " samples but decoded " + read);
+                }
+                out.flip();
+                return out;
+            }
+
+            // Not closed cleanly, so the length is unknown until the whole file is decoded.
+            ByteBuffer out = ByteBuffer.allocateDirect(BLOCK_SAMPLES * 32).order(ByteOrder.LITTLE_ENDIAN);
+            while (reader.read(out) > 0) {
+                if (!out.hasRemaining()) {
+                    out.flip();
+                    ByteBuffer grown = ByteBuffer.allocateDirect(out.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+                    out = grown.put(out);
+                }
+            }
+            out.flip();
+            return out;
+        }
+    }
+
+    private boolean decodeNextBlock() throws IOException {
+        try {
+            while (true) {
+                bitCount -= bitCount & 7;
+                if (bitCount == 0 && !input.hasRemaining() && refill() <= 0) {
+                    return false;
+                }
+                int tag = readBits(8);
+                if (tag == MAGIC[0]) {
+                    readHeader();
+                    continue;
+                }
+                if ((tag & TAG_MASK) != TAG_PREDICTED) {
+                    throw new IOException("Corrupt block tag 0x" + Integer.toHexString(tag));
+                }
+                int n = readLe16() & 0xffff;
+                if (n == 0 || n > BLOCK_SAMPLES) {
+                    throw new IOException("Corrupt block length " + n);
+                }
+                if (tag == TAG_VERBATIM) {
+                    for (int i = 0; i < n; i++) {
+                        block[i] = (short) readLe16();
+                    }
+                } else {
+                    decodePredicted(tag & ~TAG_MASK, n);
+                }
+                blockSize = n;
+                blockPos = 0;
+                return true;
+            }
+        } catch (EOFException e) {
+            truncated = true;
+            return false;
+        }
+    }
+
+    private void decodePredicted(int order, int n) throws IOException {
+        if (order > CompressedPcmFormat.MAX_ORDER || order >= n) {
+            throw new IOException("Corrupt predictor order " + order);
+        }
+        for (int i = 0; i < order; i++) {
+            block[i] = (short) readLe16();
+        }
+        int k = readBits(8);
+        if (k > CompressedPcmFormat.MAX_RICE_PARAMETER) {
+            throw new IOException("Corrupt Rice parameter " + k);
+        }
+        for (int i = order; i < n; i++) {
+            int u = (readUnary() << k) | (k > 0 ? readBits(k) : 0);
+            int residual = (u >>> 1) ^ -(u & 1);
+            block[i] = CompressedPcmFormat.restore(block, i, order, residual);
+        }
+    }
+
+    // Reads the rest of a stream header after its first magic byte.
+    private void readHeader() throws IOException {
+        for (int i = 1; i < MAGIC.length; i++) {
+            if (readBits(8) != MAGIC[i]) {
+                throw new IOException("Corrupt stream header");
+            }
+        }
+        int version = readBits(8);
+        if (version != CompressedPcmFormat.VERSION) {
+            throw new IOException("Unsupported compressed PCM version " + version);
+        }
+        readBits(8);
+        readLe16();
+        int rate = readLe16() & 0xffff | readLe16() << 16;
+        if (sampleRate != 0 && rate != sampleRate) {
+            throw new IOException("Sample rate changes between streams: " + sampleRate + " -> " + rate);
+        }
+        sampleRate = rate;
+        for (int i = 0; i < 16; i++) {
+            readBits(8);
+        }
+    }
+
+    private int readLe16() throws IOException {
+        int lo = readBits(8);
+        return lo | readBits(8) << 8;
+    }
+
+    private int readBits(int n) throws IOException {
+        while (bitCount < n) {
+            bitBuffer = (bitBuffer << 8) | nextByte();
+            bitCount += 8;
+        }
+        bitCount -= n;
+        return (int) ((bitBuffer >>> bitCount) & ((1L << n) - 1));
+    }
+
+    private int readUnary() throws IOException {
+        int q = 0;
+        while (true) {
+            if (bitCount == 0) {
+                bitBuffer = nextByte();
+                bitCount = 8;
+            }
+            long window = bitBuffer & ((1L << bitCount) - 1);
+            if (window == 0) {
+                q += bitCount;
+                bitCount = 0;
+                continue;
+            }
+            int zeros = Long.numberOfLeadingZeros(window) - (64 - bitCount);
+            bitCount -= zeros + 1;
+            return q + zeros;
+        }
+    }
+
+    private int nextByte() throws IOException {
+        if (!input.hasRemaining() && refill() <= 0) {
+            throw new EOFException();
+        }
+        return input.get() & 0xff;
+    }
+
+    private int refill() throws IOException {
+        input.clear();
+        int read = channel.read(input);
+        input.flip();
+        if (read > 0) {
+            bytesRead += read;
+        }
+        return read;
+    }
+}
@@ -0,0 +1,261 @@
+package com.alex.voicenotes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import static com.alex.voicenotes.CompressedPcmFormat.BLOCK_SAMPLES;
+import static com.alex.voicenotes.CompressedPcmFormat.HEADER_BYTES;
+import static com.alex.voicenotes.CompressedPcmFormat.MAX_ORDER;
+import static com.alex.voicenotes.CompressedPcmFormat.MAX_RICE_PARAMETER;
+
+// Streaming encoder for CompressedPcmFormat. Samples are gathered into fixed blocks, each block is
+// encoded into a reusable byte[] and written with one channel write. Nothing is allocated per chunk.
+public class CompressedPcmWriter implements PcmSink {
+    private final FileChannel channel;
+    private final int sampleRate;
+    private final int[] block = new int[BLOCK_SAMPLES];
+    private final int[] residuals = new int[BLOCK_SAMPLES];
+    private final byte[] out = new byte[BLOCK_SAMPLES * 2 + 16];
+    private final ByteBuffer outView = ByteBuffer.wrap(out);
+    private int blockFill;
+    private int outPos;
+    private long bitBuffer;
+    private int bitCount;
+    private long samplesWritten;
+    private long payloadBytes;
+    private AudioLevelMeter levelMeter;
+
+    public CompressedPcmWriter(File file, int sampleRate) throws IOException {
+        this.channel = new FileOutputStream(file).getChannel();
+        this.sampleRate = sampleRate;
+        try {
+            ByteBuffer header = header(-1, -1);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Publishes the level of each chunk to meter, measured while the chunk is copied into blocks.
+    // Null turns it off.
+    public void setLevelMeter(AudioLevelMeter meter) {
+        levelMeter = meter;
+    }
+
+    @Override
+    public void onPcm(ByteBuffer chunk) throws IOException {
+        ByteOrder order = chunk.order();
+        chunk.order(ByteOrder.LITTLE_ENDIAN);
+        long sumSquares = 0;
+        int peak = 0;
+        int samples = 0;
+        while (chunk.remaining() >= 2) {
+            int sample = chunk.getShort();
+            sumSquares += sample * sample;
+            int magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+            samples++;
+            block[blockFill++] = sample;
+            if (blockFill == BLOCK_SAMPLES) {
+                encodeBlock();
+            }
+        }
+        chunk.order(order);
+        if (levelMeter != null) {
+            levelMeter.publish(sumSquares, peak, samples);
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return samplesWritten * 2 + blockFill * 2L;
+    }
+
+    public long getCompressedBytes() {
+        return HEADER_BYTES + payloadBytes;
+    }
+
+    // Samples still gathering in the current block are not included; at most one block is lost.
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (blockFill > 0) {
+                encodeBlock();
+            }
+            // Positional write, so the channel's append position is left alone.
+            writeFully(header(samplesWritten, payloadBytes), 0);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private ByteBuffer header(long samples, long payload) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(CompressedPcmFormat.MAGIC);
+        header.put((byte) CompressedPcmFormat.VERSION);
+        header.put(new byte[3]);
+        header.putInt(sampleRate);
+        header.putLong(samples);
+        header.putLong(payload);
+        header.flip();
+        return header;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void encodeBlock() throws IOException {
+        int n = blockFill;
+        int order = chooseOrder(n);
+        outPos = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+
+        boolean encoded = false;
+        if (order >= 0) {
+            long sum = 0;
+            for (int i = order; i < n; i++) {
+                int r = CompressedPcmFormat.residual(block, i, order);
+                int u = (r << 1) ^ (r >> 31);
+                residuals[i] = u;
+                sum += u;
+            }
+            int k = chooseRiceParameter(order, n, sum);
+            long bits = riceCost(order, n, k);
+            if (bits < (long) (n - order) * 16) {
+                putByte(CompressedPcmFormat.TAG_PREDICTED | order);
+                putShort(n);
+                for (int i = 0; i < order; i++) {
+                    putShort(block[i]);
+                }
+                putByte(k);
+                for (int i = order; i < n; i++) {
+                    writeRice(residuals[i], k);
+                }
+                flushBits();
+                encoded = true;
+            }
+        }
+        if (!encoded) {
+            outPos = 0;
+            putByte(CompressedPcmFormat.TAG_VERBATIM);
+            putShort(n);
+            for (int i = 0; i < n; i++) {
+                putShort(block[i]);
+            }
+        }
+
+        outView.clear().limit(outPos);
+        while (outView.hasRemaining()) {
+            channel.write(outView);
+        }
+        payloadBytes += outPos;
+        samplesWritten += n;
+        blockFill = 0;
+    }
+
+    // Picks the fixed predictor order with the smallest absolute residual sum, or -1 when the
+    // block is too short to predict.
+    private int chooseOrder(int n) {
+        if (n <= MAX_ORDER) {
+            return -1;
+        }
+        long s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0;
+        for (int i = MAX_ORDER; i < n; i++) {
+            int e0 = block[i];
+            int e1 = e0 - block[i - 1];
+            int e2 = e1 - (block[i - 1] - block[i - 2]);
+            int e3 = e2 - (block[i - 1] - 2 * block[i - 2] + block[i - 3]);
+            int e4 = e3 - (block[i - 1] - 3 * block[i - 2] + 3 * block[i - 3] - block[i - 4]);
+            s0 += Math.abs(e0);
+            s1 += Math.abs(e1);
+            s2 += Math.abs(e2);
+            s3 += Math.abs(e3);
+            s4 += Math.abs(e4);
+        }
+        int order = 0;
+        long best = s0;
+        if (s1 < best) { best = s1; order = 1; }
+        if (s2 < best) { best = s2; order = 2; }
+        if (s3 < best) { best = s3; order = 3; }
+        if (s4 < best) { order = 4; }
+        return order;
+    }
+
+    private int chooseRiceParameter(int order, int n, long sum) {
+        long mean = sum / Math.max(1, n - order);
+        int estimate = mean > 0 ? 63 - Long.numberOfLeadingZeros(mean) : 0;
+        int best = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int k = Math.max(0, estimate - 1); k <= Math.min(MAX_RICE_PARAMETER, estimate + 1); k++) {
+            long bits = riceCost(order, n, k);
+            if (bits < bestBits) {
+                bestBits = bits;
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    private long riceCost(int order, int n, int k) {
+        long bits = (long) (n - order) * (k + 1);
+        for (int i = order; i < n; i++) {
+            bits += residuals[i] >>> k;
+        }
+        return bits;
+    }
+
+    private void writeRice(int u, int k) {
+        int q = u >>> k;
+        while (q >= 32) {
+            writeBits(0, 32);
+            q -= 32;
+        }
+        writeBits(1, q + 1);
+        if (k > 0) {
+            writeBits(u & ((1 << k) - 1), k);
+        }
+    }
+
+    private void writeBits(int value, int bits) {
+        bitBuffer = (bitBuffer << bits) | (value & ((1L << bits) - 1));
+        bitCount += bits;
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            out[outPos++] = (byte) (bitBuffer >>> bitCount);
+        }
+    }
+
+    private void flushBits() {
+        if (bitCount > 0) {
+            out[outPos++] = (byte) (bitBuffer << (8 - bitCount));
+            bitCount = 0;
+        }
+    }
+
+    private void putByte(int value) {
+        out[outPos++] = (byte) value;
+    }
+
+    private void putShort(int value) {
+        out[outPos++] = (byte) value;
+        out[outPos++] = (byte) (value >> 8);
+    }
+}
@@ -0,0 +1,46 @@
+package com.alex.voicenotes;
+
+import com.whispercpp.whisper.WhisperDecodeParams;
+
+// Named trade-offs between transcription speed and accuracy. Fast decodes each window once with a
+// single greedy candidate; Balanced is whisper's default greedy decoding with temperature fallback;
+// Accurate uses beam search. All of them leave the thread count to WhisperCpuConfig. Each profile
+// also names the model it prefers when the user has not picked one for it.
+public enum DecodingProfile {
+    FAST(R.string.profile_fast, WhisperModel.TINY_Q5_1, 1, 1, false, 0),
+    BALANCED(R.string.profile_balanced, WhisperModel.TINY, 1, 5, true, 0),
+    ACCURATE(R.string.profile_accurate, WhisperModel.BASE_Q8_0, 5, 5, true, 0);
+
+    public static final DecodingProfile DEFAULT = BALANCED;
+
+    public final int labelRes;
+    public final WhisperModel preferredModel;
+    private final int beamSize;
+    private final int bestOf;
+    private final boolean temperatureFallback;
+    private final int maxTokensPerSegment;
+
+    DecodingProfile(int labelRes, WhisperModel preferredModel, int beamSize, int bestOf,
+                    boolean temperatureFallback, int maxTokensPerSegment) {
+        this.labelRes = labelRes;
+        this.preferredModel = preferredModel;
+        this.beamSize = beamSize;
+        this.bestOf = bestOf;
+        this.temperatureFallback = temperatureFallback;
+        this.maxTokensPerSegment = maxTokensPerSegment;
+    }
+
+    // language is a whisper language code, or null to detect it.
+    public WhisperDecodeParams toParams(String language) {
+        return new WhisperDecodeParams(beamSize, bestOf, temperatureFallback, maxTokensPerSegment, language, 0);
+    }
+
+    public static DecodingProfile fromName(String name) {
+        for (DecodingProfile profile : values()) {
+            if (profile.name().equals(name)) {
+                return profile;
+            }
+        }
+        return DEFAULT;
+    }
+}
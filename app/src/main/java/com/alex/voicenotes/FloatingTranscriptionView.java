@@ -8,6 +8,7 @@ import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.WindowManager;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
 public class FloatingTranscriptionView {
@@ -16,6 +17,7 @@ public class FloatingTranscriptionView {
     private final WindowManager windowManager;
     private View floatingView;
     private TextView transcriptionText;
+    private LevelMeterUpdater levelMeter;
     private boolean isShowing = false;
 
     public FloatingTranscriptionView(Context context) {
@@ -34,6 +36,8 @@ public class FloatingTranscriptionView {
 
         floatingView = LayoutInflater.from(context).inflate(R.layout.floating_transcription, null);
         transcriptionText = floatingView.findViewById(R.id.transcription_text);
+        ProgressBar levelBar = floatingView.findViewById(R.id.level_meter);
+        levelMeter = new LevelMeterUpdater(levelBar);
 
         int layoutFlag;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -56,6 +60,7 @@ public class FloatingTranscriptionView {
         floatingView.setAlpha(0f);
         windowManager.addView(floatingView, params);
         floatingView.animate().alpha(1f).setDuration(200);
+        levelMeter.start();
         isShowing = true;
     }
 
@@ -71,6 +76,8 @@ public class FloatingTranscriptionView {
         }
 
         isShowing = false;
+        levelMeter.stop();
+        levelMeter = null;
         final View viewToRemove = floatingView;
         floatingView = null;
         transcriptionText = null;
@@ -0,0 +1,58 @@
+package com.alex.voicenotes;
+
+import android.widget.ProgressBar;
+
+// Samples the recording's AudioLevelMeter at a fixed frame rate and drives a horizontal ProgressBar:
+// RMS as the progress, peak as the secondary progress. One callback per frame on the bar itself, so
+// the UI thread does the same work whether the capture thread publishes 10 or 100 times a second.
+public class LevelMeterUpdater implements Runnable {
+    private static final long FRAME_INTERVAL_MS = 50;
+    private static final float RANGE_DB = 60f;
+    // How far the bar may fall per frame, as a fraction of its length; rises are shown immediately.
+    private static final float FALL_PER_FRAME = 0.05f;
+
+    private final ProgressBar bar;
+    private boolean running;
+    private float shownRms;
+    private float shownPeak;
+
+    public LevelMeterUpdater(ProgressBar bar) {
+        this.bar = bar;
+    }
+
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        bar.postOnAnimation(this);
+    }
+
+    public void stop() {
+        running = false;
+        bar.removeCallbacks(this);
+        shownRms = 0f;
+        shownPeak = 0f;
+        bar.setProgress(0);
+        bar.setSecondaryProgress(0);
+    }
+
+    @Override
+    public void run() {
+        if (!running) {
+            return;
+        }
+        AudioLevelMeter meter = VoiceRecordingService.getLevelMeter();
+        long levels = meter != null ? meter.getLevels() : 0;
+        shownRms = Math.max(toFraction(AudioLevelMeter.rmsOf(levels)), shownRms - FALL_PER_FRAME);
+        shownPeak = Math.max(toFraction(AudioLevelMeter.peakOf(levels)), shownPeak - FALL_PER_FRAME);
+        bar.setProgress(Math.round(shownRms * bar.getMax()));
+        bar.setSecondaryProgress(Math.round(shownPeak * bar.getMax()));
+        bar.postOnAnimationDelayed(this, FRAME_INTERVAL_MS);
+    }
+
+    private static float toFraction(float level) {
+        float db = AudioLevelMeter.toDb(level);
+        return Math.max(0f, Math.min(1f, (db + RANGE_DB) / RANGE_DB));
+    }
+}
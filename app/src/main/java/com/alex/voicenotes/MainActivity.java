@@ -56,6 +56,7 @@ public class MainActivity extends AppCompatActivity {
     private View recordingSheet;
     private MaterialButton btnTimer;
     private MaterialButton btnDone;
+    private LevelMeterUpdater levelMeter;
     private BroadcastReceiver noteReceiver;
 
     private Handler timerHandler;
@@ -85,6 +86,7 @@ public class MainActivity extends AppCompatActivity {
         recordingSheet = findViewById(R.id.recordingSheet);
         btnTimer = findViewById(R.id.btnTimer);
         btnDone = findViewById(R.id.btnDone);
+        levelMeter = new LevelMeterUpdater(findViewById(R.id.levelMeter));
 
         adapter = new GroupedNotesAdapter();
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
@@ -126,6 +128,7 @@ public class MainActivity extends AppCompatActivity {
             }
         };
 
+        executor.execute(() -> RecordingRecovery.recoverOrphans(getApplicationContext()));
         requestPermissions();
     }
 
@@ -154,6 +157,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
+        levelMeter.stop();
         unregisterReceiver(noteReceiver);
     }
 
@@ -324,6 +328,7 @@ public class MainActivity extends AppCompatActivity {
         btnTimer.setText("00:00");
         btnTimer.setIconResource(R.drawable.ic_pause);
         startTimer();
+        levelMeter.start();
     }
 
     private void hideRecordingSheet() {
@@ -347,6 +352,7 @@ public class MainActivity extends AppCompatActivity {
                 .setInterpolator(new OvershootInterpolator());
 
         stopTimer();
+        levelMeter.stop();
     }
 
     private void startTimer() {
@@ -0,0 +1,51 @@
+package com.alex.voicenotes;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded single-producer/single-consumer queue: one thread offers, one other thread polls.
+// Neither side locks or allocates, so it is safe to use from the audio capture thread.
+public class PcmBufferRing {
+    private final ByteBuffer[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    public PcmBufferRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        slots = new ByteBuffer[capacity];
+        mask = capacity - 1;
+    }
+
+    public boolean offer(ByteBuffer buffer) {
+        long t = tail.get();
+        if (t - head.get() == slots.length) {
+            return false;
+        }
+        slots[(int) t & mask] = buffer;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    public ByteBuffer poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        ByteBuffer buffer = slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return buffer;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,10 @@
+package com.alex.voicenotes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Receives 16-bit mono PCM between the chunk's position and limit. The buffer is recycled as soon
+// as the call returns, so implementations must copy anything they want to keep.
+public interface PcmConsumer {
+    void onPcm(ByteBuffer chunk) throws IOException;
+}
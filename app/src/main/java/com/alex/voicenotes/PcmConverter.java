@@ -0,0 +1,103 @@
+package com.alex.voicenotes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+// 16-bit little-endian PCM to float conversion shared by the recorder, the worker and the JNI path.
+// Samples are moved in bulk through a ShortBuffer view into a small scratch array and scaled in a
+// tight loop, so neither a full byte[] copy nor per-sample getShort() calls are needed.
+public final class PcmConverter {
+    public static final int CHUNK_SAMPLES = 8192;
+    private static final float SCALE = 1.0f / 32768.0f;
+
+    private PcmConverter() {
+    }
+
+    // Converts the samples between pcm's position and limit into out starting at outOffset and
+    // advances pcm past them. scratch must hold at least one sample. Returns the samples written.
+    public static int toFloat(ByteBuffer pcm, float[] out, int outOffset, short[] scratch) {
+        ShortBuffer samples = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        int total = samples.remaining();
+        if (total > out.length - outOffset) {
+            throw new IllegalArgumentException("Output too small: need " + total + " floats");
+        }
+        int written = 0;
+        while (written < total) {
+            int n = Math.min(scratch.length, total - written);
+            samples.get(scratch, 0, n);
+            int base = outOffset + written;
+            for (int i = 0; i < n; i++) {
+                out[base + i] = scratch[i] * SCALE;
+            }
+            written += n;
+        }
+        pcm.position(pcm.position() + total * 2);
+        return total;
+    }
+
+    public static int toFloat(ByteBuffer pcm, float[] out, int outOffset) {
+        return toFloat(pcm, out, outOffset, new short[Math.min(CHUNK_SAMPLES, Math.max(1, pcm.remaining() / 2))]);
+    }
+
+    public static float[] toFloat(byte[] pcm) {
+        float[] out = new float[pcm.length / 2];
+        toFloat(ByteBuffer.wrap(pcm, 0, out.length * 2), out, 0);
+        return out;
+    }
+
+    // Reads a raw PCM16 file straight into a float[] in fixed-size chunks, so the whole file is
+    // never held as bytes.
+    public static float[] readFile(File file) throws IOException {
+        long length = file.length();
+        if (length / 2 > Integer.MAX_VALUE) {
+            throw new IOException("PCM file too large: " + length + " bytes");
+        }
+        float[] out = new float[(int) (length / 2)];
+        int samples = readFile(file, out, 0);
+        if (samples != out.length) {
+            throw new IOException("PCM file shrank while reading: " + file.getName());
+        }
+        return out;
+    }
+
+    // Maps a raw PCM16 file read-only, ending on a whole sample. The mapping stays valid after the
+    // file is deleted, until the buffer is garbage collected.
+    public static ByteBuffer mapFile(File file) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long length = channel.size() & ~1L;
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("PCM file too large: " + length + " bytes");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    // Reads up to out.length - outOffset samples from file into out. Returns the samples read.
+    public static int readFile(File file, float[] out, int outOffset) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SAMPLES * 2).order(ByteOrder.LITTLE_ENDIAN);
+        short[] scratch = new short[CHUNK_SAMPLES];
+        int offset = outOffset;
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            while (offset < out.length) {
+                int limit = Math.min(chunk.capacity(), chunk.position() + (out.length - offset) * 2);
+                chunk.limit(limit);
+                if (channel.read(chunk) < 0 && chunk.position() < 2) {
+                    break;
+                }
+                chunk.flip();
+                int evenBytes = chunk.remaining() & ~1;
+                int tail = chunk.limit();
+                chunk.limit(chunk.position() + evenBytes);
+                offset += toFloat(chunk, out, offset, scratch);
+                chunk.limit(tail);
+                chunk.compact();
+            }
+        }
+        return offset - outOffset;
+    }
+}
@@ -0,0 +1,38 @@
+package com.alex.voicenotes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class PcmFileWriter implements PcmSink {
+    private final FileChannel channel;
+    private long bytesWritten;
+
+    public PcmFileWriter(File file) throws IOException {
+        channel = new FileOutputStream(file).getChannel();
+    }
+
+    @Override
+    public void onPcm(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            bytesWritten += channel.write(chunk);
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
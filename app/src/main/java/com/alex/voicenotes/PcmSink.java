@@ -0,0 +1,13 @@
+package com.alex.voicenotes;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// A PcmConsumer that persists what it receives, such as the audio_queue file writers.
+public interface PcmSink extends PcmConsumer, Closeable {
+    // PCM bytes accepted so far, before any compression.
+    long getBytesWritten();
+
+    // Flushes what has been written so far to storage, so it survives a crash or reboot.
+    void force() throws IOException;
+}
@@ -0,0 +1,160 @@
+package com.alex.voicenotes;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Streaming rational-ratio resampler for 16-bit mono PCM, used to bring device-rate capture (44.1 or
+// 48 kHz) down to whisper's 16 kHz. The Kaiser-windowed sinc prototype is split into L polyphase
+// branches so each output sample costs one short dot product against the input history, and only
+// branches that are actually needed are evaluated. All state is allocated in the constructor;
+// process() does not allocate.
+public class PolyphaseResampler {
+    // Passband edge and stopband start as fractions of the lower of the two Nyquist frequencies.
+    private static final double PASSBAND = 0.8;
+    private static final double STOPBAND = 1.0;
+    private static final double STOPBAND_ATTENUATION_DB = 80.0;
+
+    private final int upFactor;
+    private final int downFactor;
+    private final int taps;
+    // coefficients[phase * taps + j] weights the input sample j steps before the newest one.
+    private final float[] coefficients;
+    // Input history stored twice so the newest `taps` samples are always contiguous from position.
+    private final float[] history;
+    private int position;
+    // Offset of the next output sample past the newest input sample, in 1/upFactor input samples.
+    private int phase;
+    private AudioLevelMeter levelMeter;
+
+    public PolyphaseResampler(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("Invalid rates " + inputRate + " -> " + outputRate);
+        }
+        int divisor = gcd(inputRate, outputRate);
+        this.upFactor = outputRate / divisor;
+        this.downFactor = inputRate / divisor;
+
+        // Kaiser design at the upsampled rate L * inputRate, sized for the transition band.
+        double nyquist = Math.min(inputRate, outputRate) / 2.0;
+        double upsampledRate = (double) inputRate * upFactor;
+        double transition = 2 * Math.PI * nyquist * (STOPBAND - PASSBAND) / upsampledRate;
+        double cutoff = nyquist * (STOPBAND + PASSBAND) / 2 / upsampledRate;
+        double beta = 0.1102 * (STOPBAND_ATTENUATION_DB - 8.7);
+        int length = (int) Math.ceil((STOPBAND_ATTENUATION_DB - 8) / (2.285 * transition)) + 1;
+        this.taps = (length + upFactor - 1) / upFactor;
+        length = taps * upFactor;
+
+        coefficients = new float[length];
+        double center = (length - 1) / 2.0;
+        double norm = besselI0(beta);
+        for (int i = 0; i < length; i++) {
+            double t = i - center;
+            double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            double ratio = t / center;
+            double window = besselI0(beta * Math.sqrt(Math.max(0, 1 - ratio * ratio))) / norm;
+            // The L gain makes up for the zeros the implicit upsampling inserts.
+            coefficients[(i % upFactor) * taps + i / upFactor] = (float) (sinc * window * upFactor);
+        }
+
+        history = new float[taps * 2];
+        reset();
+    }
+
+    public void reset() {
+        Arrays.fill(history, 0f);
+        position = 0;
+        phase = upFactor;
+    }
+
+    // Publishes the level of each processed input chunk to meter, measured in process()'s own loop
+    // over the input. Null turns metering off.
+    public void setLevelMeter(AudioLevelMeter meter) {
+        levelMeter = meter;
+    }
+
+    // Output samples process() can produce at most from inputSamples input samples.
+    public int maxOutputSamples(int inputSamples) {
+        return (int) (((long) inputSamples * upFactor + upFactor - 1) / downFactor) + 1;
+    }
+
+    // Resamples the PCM16 LE samples between in's position and limit into out at its position, and
+    // advances both. out must have room for maxOutputSamples() of the input. Returns the output
+    // samples written.
+    public int process(ByteBuffer in, ByteBuffer out) {
+        int inPos = in.position();
+        int inEnd = inPos + (in.remaining() & ~1);
+        int outPos = out.position();
+        int written = 0;
+        final float[] history = this.history;
+        final float[] coefficients = this.coefficients;
+        final int taps = this.taps;
+        int position = this.position;
+        int phase = this.phase;
+        long sumSquares = 0;
+        int peak = 0;
+
+        for (int i = inPos; i < inEnd; i += 2) {
+            int pcm = in.getShort(i);
+            sumSquares += pcm * pcm;
+            int magnitude = pcm < 0 ? -pcm : pcm;
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+            float sample = pcm;
+            position = position == 0 ? taps - 1 : position - 1;
+            history[position] = sample;
+            history[position + taps] = sample;
+            phase -= upFactor;
+
+            while (phase < upFactor) {
+                int base = phase * taps;
+                float acc = 0f;
+                for (int j = 0; j < taps; j++) {
+                    acc += coefficients[base + j] * history[position + j];
+                }
+                int value = Math.round(acc);
+                if (value > Short.MAX_VALUE) {
+                    value = Short.MAX_VALUE;
+                } else if (value < Short.MIN_VALUE) {
+                    value = Short.MIN_VALUE;
+                }
+                out.putShort(outPos + written * 2, (short) value);
+                written++;
+                phase += downFactor;
+            }
+        }
+
+        this.position = position;
+        this.phase = phase;
+        if (levelMeter != null) {
+            levelMeter.publish(sumSquares, peak, (inEnd - inPos) / 2);
+        }
+        in.position(inEnd);
+        out.position(outPos + written * 2);
+        return written;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    // Zeroth-order modified Bessel function of the first kind, by its power series.
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        double half = x / 2;
+        for (int k = 1; k < 50; k++) {
+            term *= (half / k) * (half / k);
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+}
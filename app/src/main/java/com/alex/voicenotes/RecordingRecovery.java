@@ -0,0 +1,94 @@
+package com.alex.voicenotes;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Finds segment files left in cache/audio_segments by a process that died mid-recording, finalizes
+// them and hands them to TranscriptionWorker like a normally stopped recording. Also restarts the
+// queue drain for recordings that were queued but never transcribed.
+public class RecordingRecovery {
+    private static final String TAG = "RecordingRecovery";
+    private static final String SEGMENTS_DIRECTORY = "audio_segments";
+
+    // Recordings this process is still capturing or saving, which recovery must leave alone.
+    private static final Set<String> activeRecordings = ConcurrentHashMap.newKeySet();
+
+    public static File getSegmentsDirectory(Context context) {
+        return new File(context.getCacheDir(), SEGMENTS_DIRECTORY);
+    }
+
+    public static void markActive(String baseName) {
+        activeRecordings.add(baseName);
+    }
+
+    public static void markInactive(String baseName) {
+        activeRecordings.remove(baseName);
+    }
+
+    public static synchronized int recoverOrphans(Context context) {
+        File segmentsDir = getSegmentsDirectory(context);
+        int recovered = 0;
+        for (String baseName : RecordingSegments.findRecordings(segmentsDir)) {
+            if (activeRecordings.contains(baseName)) {
+                continue;
+            }
+            RecordingSegments segments = RecordingSegments.existing(segmentsDir, baseName);
+            if (recover(context, baseName, segments)) {
+                recovered++;
+            }
+        }
+        if (recovered > 0) {
+            LogHelper.i(TAG, "Recovered " + recovered + " interrupted recording(s)");
+        }
+        if (!TranscriptionWorker.getQueuedFiles(context).isEmpty()) {
+            TranscriptionWorker.enqueue(context);
+        }
+        return recovered;
+    }
+
+    private static boolean recover(Context context, String baseName, RecordingSegments segments) {
+        if (CompressedPcmFormat.isCompressed(new File(baseName))) {
+            Iterator<File> it = segments.getSegments().iterator();
+            while (it.hasNext()) {
+                File segment = it.next();
+                try {
+                    long length = segment.length();
+                    long samples = CompressedPcmReader.finalizeStream(segment);
+                    LogHelper.d(TAG, "Finalized " + segment.getName() + " with " + samples + " samples, "
+                            + (length - segment.length()) + " trailing bytes dropped");
+                    if (samples == 0) {
+                        segment.delete();
+                        it.remove();
+                    }
+                } catch (IOException e) {
+                    // finalizeStream keeps whatever blocks are intact, so this is a segment whose
+                    // header never made it to disk.
+                    LogHelper.e(TAG, "Dropping unreadable segment " + segment.getName(), e);
+                    segment.delete();
+                    it.remove();
+                }
+            }
+        }
+
+        File audioFile = new File(TranscriptionWorker.getQueueDirectory(context), baseName);
+        try {
+            long bytes = segments.joinInto(audioFile);
+            if (bytes <= 0) {
+                audioFile.delete();
+                LogHelper.d(TAG, "Discarded empty interrupted recording " + baseName);
+                return false;
+            }
+            LogHelper.i(TAG, "Recovered " + baseName + " (" + bytes + " bytes)");
+            return true;
+        } catch (IOException e) {
+            // Most likely a full disk. The segments are left in place for the next start to retry.
+            LogHelper.e(TAG, "Failed to recover " + baseName + ", will retry", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.alex.voicenotes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+// One file per active stretch of a paused/resumed recording. Segments are kept out of audio_queue
+// so nothing picks them up half-written, and are joined into the queue file on stop.
+public class RecordingSegments {
+    private static final String TAG = "RecordingSegments";
+    private static final String PART_SUFFIX = ".part";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final String baseName;
+    private final List<File> segments = new ArrayList<>();
+
+    public RecordingSegments(File directory, String baseName) {
+        this.directory = directory;
+        this.baseName = baseName;
+    }
+
+    // Reopens the segments a previous process left behind for baseName, in recording order.
+    public static RecordingSegments existing(File directory, String baseName) {
+        RecordingSegments recording = new RecordingSegments(directory, baseName);
+        for (int i = 0; ; i++) {
+            File segment = new File(directory, baseName + PART_SUFFIX + i);
+            if (!segment.exists()) {
+                break;
+            }
+            recording.segments.add(segment);
+        }
+        return recording;
+    }
+
+    // Base names of every recording with segment files in directory.
+    public static Set<String> findRecordings(File directory) {
+        Set<String> names = new TreeSet<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return names;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int index = name.lastIndexOf(PART_SUFFIX);
+            if (index > 0) {
+                names.add(name.substring(0, index));
+            }
+        }
+        return names;
+    }
+
+    public List<File> getSegments() {
+        return segments;
+    }
+
+    public File nextSegment() {
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        File segment = new File(directory, baseName + PART_SUFFIX + segments.size());
+        segments.add(segment);
+        return segment;
+    }
+
+    public int size() {
+        return segments.size();
+    }
+
+    // Concatenates all non-empty segments into target and deletes them. A single segment is just
+    // renamed; several are joined with FileChannel.transferTo so the bytes never enter the heap, into
+    // a temporary file that is renamed into place so the queue never holds a half-joined recording.
+    // Returns the length of target.
+    public long joinInto(File target) throws IOException {
+        List<File> nonEmpty = new ArrayList<>();
+        for (File segment : segments) {
+            if (segment.length() > 0) {
+                nonEmpty.add(segment);
+            }
+        }
+
+        long total = 0;
+        if (nonEmpty.size() == 1 && nonEmpty.get(0).renameTo(target)) {
+            total = target.length();
+        } else if (!nonEmpty.isEmpty()) {
+            File joining = new File(target.getPath() + TEMP_SUFFIX);
+            try (FileChannel out = new FileOutputStream(joining).getChannel()) {
+                for (File segment : nonEmpty) {
+                    try (FileChannel in = new FileInputStream(segment).getChannel()) {
+                        long size = in.size();
+                        long position = 0;
+                        while (position < size) {
+                            position += in.transferTo(position, size - position, out);
+                        }
+                        total += size;
+                    }
+                }
+            } catch (IOException e) {
+                joining.delete();
+                throw e;
+            }
+            if (!joining.renameTo(target)) {
+                joining.delete();
+                throw new IOException("Couldn't move " + joining.getName() + " into place");
+            }
+            LogHelper.d(TAG, "Joined " + nonEmpty.size() + " segments into " + target.getName() + " (" + total + " bytes)");
+        }
+        deleteAll();
+        return total;
+    }
+
+    public void deleteAll() {
+        for (File segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+    }
+}
@@ -5,15 +5,30 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SwitchCompat;
+
+import java.util.List;
 
 public class SettingsActivity extends AppCompatActivity {
+    // Choices for how long WhisperContextCache keeps an idle model: longer saves reloads between
+    // notes at the cost of holding the model's memory.
+    private static final long[] MODEL_IDLE_TIMEOUTS_MS = {0, 30_000, 2 * 60_000, 10 * 60_000};
 
     private TextView textCurrentFolder;
     private View resetFolder;
+    private SwitchCompat switchTrimSilence;
+    private SwitchCompat switchCompressQueue;
+    private SwitchCompat switchLiveTranscription;
+    private TextView textDecodingProfile;
+    private TextView textModel;
+    private TextView textModelIdleTimeout;
+    private SwitchCompat switchDetectLanguage;
     private ActivityResultLauncher<Uri> folderPickerLauncher;
 
     @Override
@@ -23,10 +38,24 @@ public class SettingsActivity extends AppCompatActivity {
 
         textCurrentFolder = findViewById(R.id.textCurrentFolder);
         resetFolder = findViewById(R.id.resetFolder);
+        switchTrimSilence = findViewById(R.id.switchTrimSilence);
+        switchCompressQueue = findViewById(R.id.switchCompressQueue);
+        switchLiveTranscription = findViewById(R.id.switchLiveTranscription);
+        textDecodingProfile = findViewById(R.id.textDecodingProfile);
+        textModel = findViewById(R.id.textModel);
+        textModelIdleTimeout = findViewById(R.id.textModelIdleTimeout);
+        switchDetectLanguage = findViewById(R.id.switchDetectLanguage);
 
         findViewById(R.id.btnBack).setOnClickListener(v -> finish());
         findViewById(R.id.folderSetting).setOnClickListener(v -> openFolderPicker());
         resetFolder.setOnClickListener(v -> resetToDefault());
+        findViewById(R.id.trimSilenceSetting).setOnClickListener(v -> toggleTrimSilence());
+        findViewById(R.id.compressQueueSetting).setOnClickListener(v -> toggleCompressQueue());
+        findViewById(R.id.liveTranscriptionSetting).setOnClickListener(v -> toggleLiveTranscription());
+        findViewById(R.id.decodingProfileSetting).setOnClickListener(v -> chooseDecodingProfile());
+        findViewById(R.id.modelSetting).setOnClickListener(v -> chooseModel());
+        findViewById(R.id.modelIdleTimeoutSetting).setOnClickListener(v -> chooseModelIdleTimeout());
+        findViewById(R.id.detectLanguageSetting).setOnClickListener(v -> toggleDetectLanguage());
         findViewById(R.id.viewLogs).setOnClickListener(v -> startActivity(new Intent(this, LogViewerActivity.class)));
 
         folderPickerLauncher = registerForActivityResult(
@@ -53,6 +82,101 @@ public class SettingsActivity extends AppCompatActivity {
         updateUI();
     }
 
+    private void toggleTrimSilence() {
+        AppSettings.setTrimSilenceEnabled(this, !AppSettings.isTrimSilenceEnabled(this));
+        updateUI();
+    }
+
+    private void toggleCompressQueue() {
+        AppSettings.setCompressQueueEnabled(this, !AppSettings.isCompressQueueEnabled(this));
+        updateUI();
+    }
+
+    private void toggleLiveTranscription() {
+        AppSettings.setLiveTranscriptionEnabled(this, !AppSettings.isLiveTranscriptionEnabled(this));
+        updateUI();
+    }
+
+    private void chooseDecodingProfile() {
+        DecodingProfile[] profiles = DecodingProfile.values();
+        String[] labels = new String[profiles.length];
+        for (int i = 0; i < profiles.length; i++) {
+            labels[i] = getString(profiles[i].labelRes);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.decoding_profile)
+                .setSingleChoiceItems(labels, AppSettings.getDecodingProfile(this).ordinal(), (dialog, which) -> {
+                    AppSettings.setDecodingProfile(this, profiles[which]);
+                    updateUI();
+                    dialog.dismiss();
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    // Picks the model used by the current quality profile, among those that can be installed.
+    private void chooseModel() {
+        List<WhisperModel> models = WhisperModelManager.getAvailableModels(this);
+        if (models.isEmpty()) {
+            Toast.makeText(this, R.string.no_models, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] labels = new String[models.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = modelLabel(models.get(i));
+        }
+        DecodingProfile profile = AppSettings.getDecodingProfile(this);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.model)
+                .setSingleChoiceItems(labels, models.indexOf(WhisperModelManager.getActiveModel(this)), (dialog, which) -> {
+                    AppSettings.setModel(this, profile, models.get(which));
+                    updateUI();
+                    dialog.dismiss();
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    private String modelLabel(WhisperModel model) {
+        return getString(R.string.model_entry, model.title, model.sizeMb);
+    }
+
+    private void chooseModelIdleTimeout() {
+        String[] labels = new String[MODEL_IDLE_TIMEOUTS_MS.length];
+        int checked = -1;
+        long current = AppSettings.getModelIdleTimeoutMs(this);
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = idleTimeoutLabel(MODEL_IDLE_TIMEOUTS_MS[i]);
+            if (MODEL_IDLE_TIMEOUTS_MS[i] == current) {
+                checked = i;
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.model_idle_timeout)
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    AppSettings.setModelIdleTimeoutMs(this, MODEL_IDLE_TIMEOUTS_MS[which]);
+                    updateUI();
+                    dialog.dismiss();
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    private String idleTimeoutLabel(long timeoutMs) {
+        if (timeoutMs == 0) {
+            return getString(R.string.model_idle_unload_now);
+        }
+        if (timeoutMs < 60_000) {
+            return getString(R.string.model_idle_seconds, (int) (timeoutMs / 1000));
+        }
+        return getString(R.string.model_idle_minutes, (int) (timeoutMs / 60_000));
+    }
+
+    private void toggleDetectLanguage() {
+        AppSettings.setDetectLanguageEnabled(this, !AppSettings.isDetectLanguageEnabled(this));
+        updateUI();
+    }
+
     private void updateUI() {
         String savedUri = FileHelper.getSavedUri(this);
         if (savedUri != null) {
@@ -63,5 +187,12 @@ public class SettingsActivity extends AppCompatActivity {
             textCurrentFolder.setText(R.string.default_folder);
             resetFolder.setVisibility(View.GONE);
         }
+        switchTrimSilence.setChecked(AppSettings.isTrimSilenceEnabled(this));
+        switchCompressQueue.setChecked(AppSettings.isCompressQueueEnabled(this));
+        switchLiveTranscription.setChecked(AppSettings.isLiveTranscriptionEnabled(this));
+        textDecodingProfile.setText(AppSettings.getDecodingProfile(this).labelRes);
+        textModel.setText(modelLabel(WhisperModelManager.getActiveModel(this)));
+        textModelIdleTimeout.setText(idleTimeoutLabel(AppSettings.getModelIdleTimeoutMs(this)));
+        switchDetectLanguage.setChecked(AppSettings.isDetectLanguageEnabled(this));
     }
 }
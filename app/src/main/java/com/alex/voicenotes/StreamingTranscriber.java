@@ -0,0 +1,266 @@
+package com.alex.voicenotes;
+
+import android.content.Context;
+import android.os.Process;
+
+import com.whispercpp.whisper.WhisperContext;
+import com.whispercpp.whisper.WhisperDecodeParams;
+import com.whispercpp.whisper.WhisperSegment;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+// Transcribes while the user is still recording. The capture stream arrives through onPcm(); a
+// background thread repeatedly decodes the audio since the last committed point, a window that grows
+// by about a second per pass. Once the window is long enough, every segment but the last is
+// committed and the window slides to the start of the last one, so a word cut by the window edge is
+// decoded again with more context. At stop only the uncommitted tail is left to decode. Live passes
+// always decode greedily, so their text only becomes the note when the user picked the Fast profile;
+// with any other profile it is a preview and the recording is transcribed offline.
+public class StreamingTranscriber implements PcmConsumer {
+    public interface Listener {
+        // Called on the decode thread after each pass with the stable text and the current guess for
+        // the rest.
+        void onHypothesis(String committed, String tentative);
+    }
+
+    private static final String TAG = "StreamingTranscriber";
+    private static final int SAMPLE_RATE = 16000;
+    private static final int STEP_SAMPLES = SAMPLE_RATE;
+    private static final int COMMIT_WINDOW_SAMPLES = SAMPLE_RATE * 5;
+    private static final int MAX_WINDOW_SAMPLES = SAMPLE_RATE * 15;
+    // Audio kept after a pass that found no speech, in case a word is just starting.
+    private static final int SILENCE_KEEP_SAMPLES = SAMPLE_RATE;
+    // whisper.cpp ignores inputs shorter than a second, so shorter windows are padded with silence.
+    private static final int MIN_DECODE_SAMPLES = SAMPLE_RATE * 11 / 10;
+    private static final long FINISH_TIMEOUT_MS = 30_000;
+    // Whisper's annotations for non-speech such as "[BLANK_AUDIO]" or "(wind blowing)".
+    private static final Pattern NON_SPEECH = Pattern.compile("^\\s*[\\[(].*[\\])]\\s*$");
+
+    private final Context appContext;
+    private final Listener listener;
+    // Live passes repeat every second, so they always use the fastest profile.
+    private final WhisperDecodeParams decodeParams;
+    private final boolean finalText;
+    private final Object lock = new Object();
+    private final short[] scratch = new short[PcmConverter.CHUNK_SAMPLES];
+    private final StringBuilder committed = new StringBuilder();
+
+    // Audio from the start of the current window; guarded by lock.
+    private float[] audio = new float[MAX_WINDOW_SAMPLES + COMMIT_WINDOW_SAMPLES];
+    private int audioSize;
+    private int decodedSize;
+    private String tentative = "";
+    private boolean finishing;
+    private boolean cancelled;
+    private boolean failed;
+    private Thread decodeThread;
+    private CompletableFuture<?> inFlight;
+
+    public StreamingTranscriber(Context context, Listener listener) {
+        this.appContext = context.getApplicationContext();
+        this.listener = listener;
+        this.decodeParams = DecodingProfile.FAST.toParams(AppSettings.getTranscriptionLanguage(appContext));
+        this.finalText = AppSettings.getDecodingProfile(appContext) == DecodingProfile.FAST;
+    }
+
+    // Whether finish() gives the note's text, or the live text is only a preview of it.
+    public boolean isFinalText() {
+        return finalText;
+    }
+
+    public void start() {
+        decodeThread = new Thread(this::decodeLoop, "StreamingTranscriber");
+        decodeThread.start();
+    }
+
+    @Override
+    public void onPcm(ByteBuffer chunk) {
+        synchronized (lock) {
+            if (finishing || cancelled) {
+                return;
+            }
+            int samples = chunk.remaining() / 2;
+            if (audioSize + samples > audio.length) {
+                // Only when decoding falls behind the commit window.
+                audio = Arrays.copyOf(audio, Math.max(audio.length * 2, audioSize + samples));
+            }
+            audioSize += PcmConverter.toFloat(chunk, audio, audioSize, scratch);
+            if (audioSize - decodedSize >= STEP_SAMPLES) {
+                lock.notify();
+            }
+        }
+    }
+
+    // Decodes whatever is still uncommitted and returns the full transcription, or null if live
+    // decoding failed or could not finish in time and the recording should be transcribed offline.
+    public String finish() {
+        synchronized (lock) {
+            finishing = true;
+            lock.notify();
+        }
+        try {
+            decodeThread.join(FINISH_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            if (decodeThread.isAlive() || failed) {
+                cancelled = true;
+                cancelPass();
+                lock.notify();
+                return null;
+            }
+            return committed.toString().trim();
+        }
+    }
+
+    public void cancel() {
+        synchronized (lock) {
+            cancelled = true;
+            cancelPass();
+            lock.notify();
+        }
+    }
+
+    // Drops a queued pass so the context is free for the offline fallback. Called with lock held.
+    private void cancelPass() {
+        if (inFlight != null) {
+            inFlight.cancel(true);
+        }
+    }
+
+    private void decodeLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        WhisperContext whisper;
+        try {
+            whisper = WhisperContextCache.acquire(appContext);
+        } catch (Exception e) {
+            LogHelper.e(TAG, "Live transcription unavailable", e);
+            synchronized (lock) {
+                failed = true;
+            }
+            return;
+        }
+
+        try {
+            while (true) {
+                float[] window;
+                int windowSamples;
+                boolean last;
+                synchronized (lock) {
+                    while (!cancelled && !finishing && audioSize - decodedSize < STEP_SAMPLES) {
+                        lock.wait();
+                    }
+                    if (cancelled) {
+                        return;
+                    }
+                    last = finishing;
+                    if (last && audioSize == decodedSize) {
+                        // Nothing new since the last pass, so its guess is the answer.
+                        committed.append(tentative);
+                        tentative = "";
+                        return;
+                    }
+                    decodedSize = audioSize;
+                    windowSamples = audioSize;
+                    window = Arrays.copyOf(audio, Math.max(audioSize, MIN_DECODE_SAMPLES));
+                }
+
+                long start = System.nanoTime();
+                List<WhisperSegment> segments = decode(whisper, window);
+                LogHelper.d(TAG, "Decoded " + (windowSamples * 1000L / SAMPLE_RATE) + " ms window in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms, " + segments.size() + " segments");
+
+                String committedText;
+                String tentativeText;
+                synchronized (lock) {
+                    advance(segments, last);
+                    committedText = committed.toString();
+                    tentativeText = tentative;
+                }
+                if (last) {
+                    return;
+                }
+                listener.onHypothesis(committedText, tentativeText);
+            }
+        } catch (CancellationException e) {
+            LogHelper.d(TAG, "Live transcription cancelled");
+        } catch (Throwable e) {
+            LogHelper.e(TAG, "Live transcription failed", e);
+            synchronized (lock) {
+                failed = true;
+            }
+        } finally {
+            WhisperContextCache.release(appContext);
+        }
+    }
+
+    // Commits the stable part of the last pass and slides the window past it. Called with lock held.
+    private void advance(List<WhisperSegment> segments, boolean last) {
+        int count = segments.size();
+        int keepFrom;
+        if (last) {
+            keepFrom = count;
+        } else if (decodedSize < COMMIT_WINDOW_SAMPLES) {
+            keepFrom = 0;
+        } else if (count >= 2) {
+            keepFrom = count - 1;
+        } else if (decodedSize >= MAX_WINDOW_SAMPLES) {
+            keepFrom = count;
+        } else {
+            keepFrom = 0;
+        }
+
+        for (int i = 0; i < keepFrom; i++) {
+            appendSpeech(committed, segments.get(i));
+        }
+        StringBuilder rest = new StringBuilder();
+        for (int i = keepFrom; i < count; i++) {
+            appendSpeech(rest, segments.get(i));
+        }
+        tentative = rest.toString();
+
+        int cut;
+        if (keepFrom == count) {
+            cut = count == 0 && !last ? Math.max(0, decodedSize - SILENCE_KEEP_SAMPLES) : decodedSize;
+        } else if (keepFrom > 0) {
+            cut = (int) Math.min(decodedSize, segments.get(keepFrom).getStartMs() * SAMPLE_RATE / 1000);
+        } else {
+            cut = 0;
+        }
+        if (cut > 0) {
+            System.arraycopy(audio, cut, audio, 0, audioSize - cut);
+            audioSize -= cut;
+            decodedSize -= cut;
+        }
+    }
+
+    private static void appendSpeech(StringBuilder out, WhisperSegment segment) {
+        String text = segment.getText();
+        if (!NON_SPEECH.matcher(text).matches()) {
+            out.append(text);
+        }
+    }
+
+    private List<WhisperSegment> decode(WhisperContext whisper, float[] window) throws Exception {
+        CompletableFuture<List<WhisperSegment>> pass = whisper.transcribeSegmentsAsync(window, decodeParams);
+        synchronized (lock) {
+            if (cancelled) {
+                pass.cancel(true);
+            }
+            inFlight = pass;
+        }
+        try {
+            return pass.get();
+        } finally {
+            synchronized (lock) {
+                inFlight = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.alex.voicenotes;
+
+import java.util.Random;
+
+// Harmonic bursts with pauses and a little noise: enough for whisper to run its full encoder and a
+// few decoder steps, so calibration and on-device benchmarks need no bundled recording. The output
+// depends only on the length, so runs are comparable.
+public final class SyntheticSpeech {
+    private SyntheticSpeech() {
+    }
+
+    public static float[] generate(int samples, int sampleRate) {
+        Random random = new Random(1);
+        float[] audio = new float[samples];
+        for (int i = 0; i < audio.length; i++) {
+            double t = (double) i / sampleRate;
+            double envelope = Math.max(0, Math.sin(2 * Math.PI * 0.3 * t));
+            double f0 = 120 + 30 * Math.sin(2 * Math.PI * 0.7 * t);
+            double voice = Math.sin(2 * Math.PI * f0 * t) + 0.5 * Math.sin(4 * Math.PI * f0 * t);
+            audio[i] = (float) (0.2 * envelope * voice + 0.001 * random.nextGaussian());
+        }
+        return audio;
+    }
+}
@@ -0,0 +1,220 @@
+package com.alex.voicenotes;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.core.content.pm.PackageInfoCompat;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.whispercpp.whisper.WhisperContext;
+import com.whispercpp.whisper.WhisperCpuConfig;
+import com.whispercpp.whisper.WhisperDecodeParams;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Measures which thread count decodes fastest on this device with the installed model, instead of
+// guessing from the CPU topology. A short synthetic recording is transcribed once per thread count
+// from 1 to the number of cores; the counts within a few percent of the fastest are then compared
+// with ggml's matrix multiplication benchmark for the model's weight type, which averages over many
+// more runs than a single decode. The winner is stored per device build, app version and model, so
+// it is measured again whenever one of those changes. The whole curve goes to the log viewer.
+//
+// Calibration loads its own context rather than sharing the cached one, so a transcription queued
+// on the shared context's thread neither waits behind it nor ends up inside its timings. It only
+// runs while the device is idle and charging, when nothing else should be competing for the cores.
+public class ThreadCalibrationWorker extends Worker {
+    private static final String TAG = "ThreadCalibration";
+    private static final String UNIQUE_WORK_NAME = "thread_calibration";
+    private static final int SAMPLE_RATE = 16000;
+    private static final int AUDIO_SECONDS = 8;
+    private static final int MAX_THREADS = 8;
+    private static final long DECODE_TIMEOUT_MS = 60_000;
+    // Decode times this close to the fastest are treated as ties and settled by the benchmark.
+    private static final double TIE_TOLERANCE = 0.05;
+    private static final int MAX_BENCHMARKED = 3;
+    private static final Pattern GFLOPS = Pattern.compile("(Q4_0|Q4_1|Q5_0|Q5_1|Q8_0|F16|F32)\\s+([0-9.]+) GFLOPS");
+
+    private volatile CompletableFuture<?> current;
+
+    public ThreadCalibrationWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    // Uses the stored calibration for modelFile if there is one, and otherwise schedules a
+    // calibration and keeps the heuristic thread count until it has run.
+    public static void applyOrSchedule(Context context, File modelFile) {
+        int threads = AppSettings.getCalibratedThreads(context, calibrationKey(context, modelFile));
+        WhisperCpuConfig.INSTANCE.setCalibratedThreadCount(threads);
+        if (threads > 0) {
+            return;
+        }
+        Constraints constraints = new Constraints.Builder()
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(ThreadCalibrationWorker.class)
+                .setConstraints(constraints)
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(UNIQUE_WORK_NAME, ExistingWorkPolicy.KEEP, request);
+        LogHelper.d(TAG, "No calibration for " + modelFile.getName() + " yet, scheduled one");
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        File modelFile;
+        WhisperContext whisper;
+        try {
+            modelFile = WhisperModelManager.ensureModelAvailable(context);
+            whisper = WhisperContext.Companion.createContextFromMappedFile(modelFile.getAbsolutePath());
+        } catch (Exception e) {
+            LogHelper.e(TAG, "Could not load the model for calibration", e);
+            return Result.retry();
+        }
+        try {
+            String key = calibrationKey(context, modelFile);
+            if (AppSettings.getCalibratedThreads(context, key) > 0) {
+                return Result.success();
+            }
+            int threads = calibrate(whisper, modelFile);
+            if (threads <= 0) {
+                return Result.retry();
+            }
+            AppSettings.setCalibratedThreads(context, key, threads);
+            WhisperCpuConfig.INSTANCE.setCalibratedThreadCount(threads);
+            return Result.success();
+        } catch (Exception e) {
+            if (isStopped()) {
+                return Result.retry();
+            }
+            LogHelper.e(TAG, "Calibration failed", e);
+            return Result.failure();
+        } finally {
+            WhisperContextCache.free(whisper);
+        }
+    }
+
+    @Override
+    public void onStopped() {
+        CompletableFuture<?> work = current;
+        if (work != null) {
+            work.cancel(true);
+        }
+    }
+
+    // Returns the chosen thread count, or 0 if the worker was stopped part way through.
+    private int calibrate(WhisperContext whisper, File modelFile) throws Exception {
+        int maxThreads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        String weightType = weightType(modelFile);
+        float[] audio = SyntheticSpeech.generate(SAMPLE_RATE * AUDIO_SECONDS, SAMPLE_RATE);
+        LogHelper.i(TAG, String.format(Locale.US, "Calibrating %s (%s weights) on %s %s, 1..%d threads",
+                modelFile.getName(), weightType, Build.MANUFACTURER, Build.MODEL, maxThreads));
+
+        // The first decode allocates buffers and faults the weights in; keep it out of the curve.
+        decode(whisper, audio, maxThreads);
+        long[] decodeMs = new long[maxThreads + 1];
+        long fastest = Long.MAX_VALUE;
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            if (isStopped()) {
+                return 0;
+            }
+            decodeMs[threads] = decode(whisper, audio, threads);
+            fastest = Math.min(fastest, decodeMs[threads]);
+            LogHelper.i(TAG, String.format(Locale.US, "%d threads: %d ms for %d s of audio, real-time factor %.3f",
+                    threads, decodeMs[threads], AUDIO_SECONDS, decodeMs[threads] / (AUDIO_SECONDS * 1000.0)));
+        }
+
+        List<Integer> ties = new ArrayList<>();
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            if (decodeMs[threads] <= fastest * (1 + TIE_TOLERANCE)) {
+                ties.add(threads);
+            }
+        }
+        ties.sort((a, b) -> Long.compare(decodeMs[a], decodeMs[b]));
+        int best = ties.get(0);
+        if (ties.size() > 1) {
+            double bestGflops = -1;
+            for (int threads : ties.subList(0, Math.min(MAX_BENCHMARKED, ties.size()))) {
+                if (isStopped()) {
+                    return 0;
+                }
+                double gflops = benchmark(whisper, threads, weightType);
+                LogHelper.i(TAG, String.format(Locale.US, "%d threads: mul_mat %s %.1f GFLOPS",
+                        threads, weightType, gflops));
+                if (gflops > bestGflops) {
+                    bestGflops = gflops;
+                    best = threads;
+                }
+            }
+        }
+
+        LogHelper.i(TAG, String.format(Locale.US, "Calibrated %d threads for %s (%d ms; heuristic guess was %d)",
+                best, modelFile.getName(), decodeMs[best], WhisperCpuConfig.INSTANCE.getHeuristicThreadCount()));
+        return best;
+    }
+
+    private long decode(WhisperContext whisper, float[] audio, int threads) throws Exception {
+        WhisperDecodeParams params = new WhisperDecodeParams(1, 1, false, 0, "en", threads);
+        long start = System.nanoTime();
+        CompletableFuture<String> work = whisper.transcribeAsync(audio, null, params);
+        current = work;
+        WhisperTranscriber.await(work, DECODE_TIMEOUT_MS);
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    // Mean GFLOPS over the benchmark's matrix sizes for the given weight type.
+    private double benchmark(WhisperContext whisper, int threads, String weightType) throws Exception {
+        CompletableFuture<String> work = whisper.benchGgmlMulMatAsync(threads);
+        current = work;
+        String report = work.get();
+        Matcher matcher = GFLOPS.matcher(report);
+        double sum = 0;
+        int count = 0;
+        while (matcher.find()) {
+            if (matcher.group(1).equals(weightType)) {
+                sum += Double.parseDouble(matcher.group(2));
+                count++;
+            }
+        }
+        return count > 0 ? sum / count : 0;
+    }
+
+    // The benchmark's name for the model's weight type, read from the catalog file name.
+    private static String weightType(File modelFile) {
+        String name = modelFile.getName();
+        if (name.contains("q5_1")) {
+            return "Q5_1";
+        }
+        if (name.contains("q8_0")) {
+            return "Q8_0";
+        }
+        return "F16";
+    }
+
+    private static String calibrationKey(Context context, File modelFile) {
+        String version;
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            version = PackageInfoCompat.getLongVersionCode(info) + "-" + info.versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            version = "unknown";
+        }
+        return modelFile.getName() + "_" + modelFile.length() + "_" + version
+                + "_" + Integer.toHexString(Build.FINGERPRINT.hashCode());
+    }
+}
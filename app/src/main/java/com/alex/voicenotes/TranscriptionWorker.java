@@ -1,106 +1,406 @@
 package com.alex.voicenotes;
 
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
+import android.text.format.DateUtils;
 
 import androidx.annotation.NonNull;
+import androidx.core.app.NotificationCompat;
 import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
+import com.whispercpp.whisper.WhisperSegment;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 
+// Drains cache/audio_queue: every queued recording is transcribed in one run on a single warm
+// context, oldest first. Each file is deleted as soon as its note is saved, so a run that is stopped
+// or killed resumes with the next unprocessed file rather than starting the batch over.
 public class TranscriptionWorker extends Worker {
     private static final String TAG = "TranscriptionWorker";
-    public static final String KEY_AUDIO_FILE_PATH = "audio_file_path";
+    // Progress data: percent done, and estimated time left in ms or -1 while unknown.
+    public static final String KEY_PROGRESS = "progress";
+    public static final String KEY_ETA_MS = "eta_ms";
+    // Progress data: 1-based position of the current file in this run, and files in the run so far.
+    public static final String KEY_FILE_INDEX = "file_index";
+    public static final String KEY_FILE_COUNT = "file_count";
+    private static final int PROGRESS_NOTIFICATION_ID = 2;
+    private static final String PROGRESS_CHANNEL_ID = "voice_notes_transcription";
+    private static final String QUEUE_DIRECTORY = "audio_queue";
+    private static final String UNIQUE_WORK_NAME = "transcription";
+    // Deadline for one recording: a fixed allowance for slow starts plus a multiple of its length,
+    // doubled on each retry of a run that timed out so a slow device still gets through eventually.
+    private static final long TIMEOUT_BASE_MS = 120_000;
+    private static final int TIMEOUT_REALTIME_FACTOR = 3;
+    private static final int MAX_TIMEOUT_DOUBLINGS = 4;
+    // A file whose decode fails this many times is moved to cache/audio_failed rather than being
+    // decoded again on every drain. Failures are counted in a sidecar next to the queue file, one
+    // byte per failure.
+    private static final int MAX_DECODE_FAILURES = 3;
+    private static final String FAILURES_SUFFIX = ".failures";
+    private static final String FAILED_DIRECTORY = "audio_failed";
+
+    // Queue files this process is still delivering some other way, such as live transcription.
+    private static final Set<String> sClaimed = ConcurrentHashMap.newKeySet();
+
+    private volatile WhisperTranscriber transcriber;
+    private int fileIndex;
+    private int fileCount;
 
     public TranscriptionWorker(@NonNull Context context, @NonNull WorkerParameters params) {
         super(context, params);
     }
 
+    public static File getQueueDirectory(Context context) {
+        File audioDir = new File(context.getCacheDir(), QUEUE_DIRECTORY);
+        if (!audioDir.exists()) {
+            audioDir.mkdirs();
+        }
+        return audioDir;
+    }
+
+    // Makes sure a drain runs after the current one. A file queued while a run is in progress is
+    // usually picked up by that run, and the follow-up then finds the queue empty and exits without
+    // loading the model. APPEND_OR_REPLACE also starts a fresh chain if an earlier run failed.
+    public static void enqueue(Context context) {
+        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(TranscriptionWorker.class).build();
+        WorkManager.getInstance(context)
+                .enqueueUniqueWork(UNIQUE_WORK_NAME, ExistingWorkPolicy.APPEND_OR_REPLACE, workRequest);
+        LogHelper.d(TAG, "Enqueued transcription queue drain");
+    }
+
+    // Keeps the worker away from a queue file until unclaim(). Claims live in memory only, so after
+    // a crash the file is simply transcribed by the next drain.
+    public static void claim(File audioFile) {
+        sClaimed.add(audioFile.getName());
+    }
+
+    public static void unclaim(File audioFile) {
+        sClaimed.remove(audioFile.getName());
+    }
+
+    // Queued recordings in the order they were made. Names carry the start time in fixed-width
+    // milliseconds, so name order is recording order even for recovered files written later.
+    public static List<File> getQueuedFiles(Context context) {
+        List<File> queued = new ArrayList<>();
+        File[] files = getQueueDirectory(context).listFiles();
+        if (files == null) {
+            return queued;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (isAudioFile(name) && !sClaimed.contains(name)) {
+                queued.add(file);
+            }
+        }
+        Collections.sort(queued, (a, b) -> a.getName().compareTo(b.getName()));
+        return queued;
+    }
+
+    private static boolean isAudioFile(String name) {
+        return name.endsWith(".pcm") || name.endsWith(CompressedPcmFormat.EXTENSION);
+    }
+
     @NonNull
     @Override
     public Result doWork() {
-        String audioFilePath = getInputData().getString(KEY_AUDIO_FILE_PATH);
-        if (audioFilePath == null) {
-            LogHelper.e(TAG, "No audio file path provided");
+        Context context = getApplicationContext();
+        Set<String> attempted = new HashSet<>();
+        WhisperTranscriber transcriber = new WhisperTranscriber();
+        int transcribed = 0;
+        try {
+            while (!isStopped()) {
+                File audioFile = nextFile(context, attempted);
+                if (audioFile == null) {
+                    break;
+                }
+                if (!transcriber.isInitialized()) {
+                    showProgress(0, -1);
+                    transcriber.initialize(context);
+                    this.transcriber = transcriber;
+                }
+                if (transcribeFile(transcriber, audioFile)) {
+                    transcribed++;
+                }
+            }
+            if (isStopped()) {
+                return Result.retry();
+            }
+            if (transcribed > 0) {
+                LogHelper.i(TAG, "Drained transcription queue: " + transcribed + " of " + fileCount + " file(s)");
+            }
+            return Result.success();
+        } catch (CancellationException e) {
+            // Stopped by WorkManager; the remaining files stay queued for the rescheduled run.
+            LogHelper.d(TAG, "Transcription stopped after " + transcribed + " file(s)");
+            return Result.retry();
+        } catch (TimeoutException e) {
+            // Too slow rather than broken: the file stays queued and the retry gets a longer deadline.
+            LogHelper.w(TAG, e.getMessage() + ", retrying with a longer deadline");
+            return Result.retry();
+        } catch (Exception e) {
+            // Only loading the model gets here. The files stay queued for the next drain.
+            LogHelper.e(TAG, "Transcription failed", e);
+            sendErrorBroadcast(context, "Transcription failed: " + e.getMessage());
             return Result.failure();
+        } finally {
+            this.transcriber = null;
+            transcriber.release();
+            cancelProgressNotification();
         }
+    }
 
-        File audioFile = new File(audioFilePath);
-        if (!audioFile.exists()) {
-            LogHelper.e(TAG, "Audio file does not exist: " + audioFilePath);
-            return Result.failure();
+    // The oldest queued file not yet tried in this run. The queue is listed again each time so files
+    // that arrive during the run are included.
+    private File nextFile(Context context, Set<String> attempted) {
+        List<File> queued = getQueuedFiles(context);
+        Iterator<File> it = queued.iterator();
+        while (it.hasNext()) {
+            if (attempted.contains(it.next().getName())) {
+                it.remove();
+            }
         }
+        if (queued.isEmpty()) {
+            return null;
+        }
+        File next = queued.get(0);
+        attempted.add(next.getName());
+        fileIndex = attempted.size();
+        fileCount = attempted.size() + queued.size() - 1;
+        return next;
+    }
 
+    // Transcribes one file and deletes it once the note is saved. Only files that cannot be read
+    // are deleted; a failed decode leaves the file queued for the next drain, up to
+    // MAX_DECODE_FAILURES, and moves on to the rest of the queue. Cancellation and timeouts are
+    // passed on so the run is retried.
+    private boolean transcribeFile(WhisperTranscriber transcriber, File audioFile) throws TimeoutException {
+        Context context = getApplicationContext();
+        ByteBuffer pcm;
         try {
-            byte[] pcmData = readFile(audioFile);
-            if (pcmData.length == 0) {
-                LogHelper.e(TAG, "Audio file is empty");
-                audioFile.delete();
-                return Result.failure();
+            pcm = readPcm16(audioFile);
+        } catch (IOException | RuntimeException e) {
+            // A malformed file can also trip the readers' bounds checks.
+            LogHelper.e(TAG, "Unreadable audio file " + audioFile.getName(), e);
+            deleteQueued(audioFile);
+            sendErrorBroadcast(context, "Transcription failed: " + e.getMessage());
+            return false;
+        }
+        int sampleCount = pcm.remaining() / 2;
+        if (sampleCount == 0) {
+            LogHelper.e(TAG, "Audio file is empty: " + audioFile.getName());
+            deleteQueued(audioFile);
+            return false;
+        }
+
+        try {
+            LogHelper.d(TAG, "Transcribing " + audioFile.getName() + " (" + fileIndex + " of " + fileCount + "), "
+                    + sampleCount + " samples (" + (sampleCount / 16000.0) + " seconds)");
+
+            long timeoutMs = (TIMEOUT_BASE_MS + sampleCount * 1000L / 16000 * TIMEOUT_REALTIME_FACTOR)
+                    << Math.min(getRunAttemptCount(), MAX_TIMEOUT_DOUBLINGS);
+            long audioMs = sampleCount * 1000L / 16000;
+            showProgress(0, -1);
+            long start = System.nanoTime();
+            List<WhisperSegment> segments = transcriber.transcribePcm16Segments(pcm, timeoutMs,
+                    progress -> onProgress(progress, (System.nanoTime() - start) / 1_000_000, audioMs));
+            logSegments(segments);
+
+            deliverTranscription(context, AudioChunker.joinText(segments));
+            deleteQueued(audioFile);
+            return true;
+        } catch (CancellationException | TimeoutException e) {
+            throw e;
+        } catch (Exception e) {
+            int failures = recordFailure(audioFile);
+            if (failures < MAX_DECODE_FAILURES) {
+                LogHelper.e(TAG, "Transcription failed for " + audioFile.getName() + " (" + failures
+                        + " of " + MAX_DECODE_FAILURES + " attempts), keeping it queued", e);
+                return false;
             }
+            LogHelper.e(TAG, "Transcription failed for " + audioFile.getName() + " " + failures
+                    + " times, setting it aside", e);
+            setAside(context, audioFile);
+            sendErrorBroadcast(context, "Transcription failed: " + e.getMessage());
+            return false;
+        }
+    }
 
-            float[] audioSamples = pcmToFloat(pcmData);
-            LogHelper.d(TAG, "Transcribing " + audioSamples.length + " samples (" + (audioSamples.length / 16000.0) + " seconds)");
+    private static File failuresFile(File audioFile) {
+        return new File(audioFile.getPath() + FAILURES_SUFFIX);
+    }
 
-            WhisperTranscriber transcriber = new WhisperTranscriber();
-            transcriber.initialize(getApplicationContext());
-            String transcription = transcriber.transcribe(audioSamples);
-            transcriber.release();
+    // Returns the number of failed decodes of audioFile including this one.
+    private static int recordFailure(File audioFile) {
+        File sidecar = failuresFile(audioFile);
+        try (FileOutputStream out = new FileOutputStream(sidecar, true)) {
+            out.write(0);
+        } catch (IOException e) {
+            LogHelper.w(TAG, "Couldn't count the failure of " + audioFile.getName() + ": " + e.getMessage());
+        }
+        return (int) sidecar.length();
+    }
+
+    private static void deleteQueued(File audioFile) {
+        audioFile.delete();
+        failuresFile(audioFile).delete();
+    }
 
+    // Moves a file that keeps failing out of the queue, keeping it for diagnosis until the system
+    // clears the cache.
+    private static void setAside(Context context, File audioFile) {
+        File failedDir = new File(context.getCacheDir(), FAILED_DIRECTORY);
+        if (!failedDir.exists()) {
+            failedDir.mkdirs();
+        }
+        if (!audioFile.renameTo(new File(failedDir, audioFile.getName()))) {
             audioFile.delete();
+        }
+        failuresFile(audioFile).delete();
+    }
 
-            if (transcription == null || transcription.isEmpty()) {
-                LogHelper.d(TAG, "No transcription result");
-                sendErrorBroadcast("No speech detected");
-                return Result.success();
+    // Segment count and the least confident segment, to spot recordings worth listening to again.
+    private static void logSegments(List<WhisperSegment> segments) {
+        WhisperSegment weakest = null;
+        for (WhisperSegment segment : segments) {
+            if (!Float.isNaN(segment.getProbability())
+                    && (weakest == null || segment.getProbability() < weakest.getProbability())) {
+                weakest = segment;
             }
+        }
+        if (weakest == null) {
+            LogHelper.d(TAG, segments.size() + " segments");
+        } else {
+            LogHelper.d(TAG, String.format(Locale.US, "%d segments, lowest probability %.2f at %d ms",
+                    segments.size(), weakest.getProbability(), weakest.getStartMs()));
+        }
+    }
 
-            LogHelper.d(TAG, "Transcription result: " + transcription);
-            File noteFile = FileHelper.saveNote(getApplicationContext(), transcription);
+    @Override
+    public void onStopped() {
+        WhisperTranscriber current = transcriber;
+        if (current != null) {
+            current.cancel();
+        }
+    }
 
-            if (noteFile != null) {
-                Intent broadcast = new Intent(VoiceRecordingService.BROADCAST_NOTE_SAVED);
-                broadcast.putExtra(VoiceRecordingService.EXTRA_FILENAME, noteFile.getName());
-                getApplicationContext().sendBroadcast(broadcast);
-            }
+    // Called on the decoding thread. The remaining time is extrapolated from the real-time factor
+    // observed so far, which is also logged so throughput can be compared across devices.
+    private void onProgress(int progress, long elapsedMs, long audioMs) {
+        long etaMs = -1;
+        if (progress > 0 && progress < 100) {
+            double realtimeFactor = elapsedMs / (audioMs * progress / 100.0);
+            etaMs = (long) (realtimeFactor * audioMs * (100 - progress) / 100);
+            LogHelper.d(TAG, String.format(Locale.US, "Progress %d%% after %d ms, real-time factor %.2f, %d ms left",
+                    progress, elapsedMs, realtimeFactor, etaMs));
+        } else if (progress == 100) {
+            LogHelper.i(TAG, String.format(Locale.US, "Decoded %d ms of audio in %d ms, real-time factor %.2f",
+                    audioMs, elapsedMs, (double) elapsedMs / Math.max(1, audioMs)));
+        }
+        setProgressAsync(new Data.Builder()
+                .putInt(KEY_PROGRESS, progress)
+                .putLong(KEY_ETA_MS, etaMs)
+                .putInt(KEY_FILE_INDEX, fileIndex)
+                .putInt(KEY_FILE_COUNT, fileCount)
+                .build());
+        showProgress(progress, etaMs);
+    }
 
-            return Result.success();
-        } catch (Exception e) {
-            LogHelper.e(TAG, "Transcription failed", e);
-            audioFile.delete();
-            sendErrorBroadcast("Transcription failed: " + e.getMessage());
-            return Result.failure();
+    private void showProgress(int progress, long etaMs) {
+        Context context = getApplicationContext();
+        NotificationManager manager = context.getSystemService(NotificationManager.class);
+        if (manager == null) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(
+                    PROGRESS_CHANNEL_ID,
+                    context.getString(R.string.transcription_channel_name),
+                    NotificationManager.IMPORTANCE_LOW);
+            channel.setDescription(context.getString(R.string.transcription_channel_description));
+            manager.createNotificationChannel(channel);
         }
+
+        Intent openIntent = new Intent(context, MainActivity.class);
+        PendingIntent openPendingIntent = PendingIntent.getActivity(
+                context, 0, openIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        String text = etaMs >= 0
+                ? context.getString(R.string.transcription_progress_eta, progress,
+                        DateUtils.formatElapsedTime(Math.max(1, etaMs / 1000)))
+                : context.getString(R.string.transcription_progress, progress);
+
+        manager.notify(PROGRESS_NOTIFICATION_ID, new NotificationCompat.Builder(context, PROGRESS_CHANNEL_ID)
+                .setContentTitle(fileCount > 1
+                        ? context.getString(R.string.transcribing_batch, fileIndex, fileCount)
+                        : context.getString(R.string.transcribing))
+                .setContentText(text)
+                .setSmallIcon(R.drawable.ic_mic)
+                .setContentIntent(openPendingIntent)
+                .setProgress(100, progress, progress == 0)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build());
     }
 
-    private void sendErrorBroadcast(String message) {
-        Intent errorIntent = new Intent(VoiceRecordingService.BROADCAST_ERROR);
-        errorIntent.putExtra(VoiceRecordingService.EXTRA_ERROR_MESSAGE, message);
-        getApplicationContext().sendBroadcast(errorIntent);
+    private void cancelProgressNotification() {
+        NotificationManager manager = getApplicationContext().getSystemService(NotificationManager.class);
+        if (manager != null) {
+            manager.cancel(PROGRESS_NOTIFICATION_ID);
+        }
     }
 
-    private byte[] readFile(File file) throws IOException {
-        byte[] data = new byte[(int) file.length()];
-        try (FileInputStream fis = new FileInputStream(file)) {
-            fis.read(data);
+    // Saves a finished transcription as a note and tells the UI, whether it came from this worker or
+    // from live transcription during recording.
+    public static void deliverTranscription(Context context, String transcription) {
+        if (transcription == null || transcription.isEmpty()) {
+            LogHelper.d(TAG, "No transcription result");
+            sendErrorBroadcast(context, "No speech detected");
+            return;
+        }
+
+        LogHelper.d(TAG, "Transcription result: " + transcription);
+        File noteFile = FileHelper.saveNote(context, transcription);
+
+        if (noteFile != null) {
+            Intent broadcast = new Intent(VoiceRecordingService.BROADCAST_NOTE_SAVED);
+            broadcast.putExtra(VoiceRecordingService.EXTRA_FILENAME, noteFile.getName());
+            context.sendBroadcast(broadcast);
         }
-        return data;
     }
 
-    private float[] pcmToFloat(byte[] pcmData) {
-        int numSamples = pcmData.length / 2;
-        float[] floatData = new float[numSamples];
-        ByteBuffer byteBuffer = ByteBuffer.wrap(pcmData).order(ByteOrder.LITTLE_ENDIAN);
-        for (int i = 0; i < numSamples; i++) {
-            short sample = byteBuffer.getShort();
-            floatData[i] = sample / 32768.0f;
+    // Raw files are mapped rather than read; compressed ones are decoded into a direct buffer. Either
+    // way the recording never sits on the Java heap.
+    private static ByteBuffer readPcm16(File audioFile) throws IOException {
+        if (CompressedPcmFormat.isCompressed(audioFile)) {
+            return CompressedPcmReader.readFilePcm16(audioFile);
         }
-        return floatData;
+        return PcmConverter.mapFile(audioFile);
+    }
+
+    private static void sendErrorBroadcast(Context context, String message) {
+        Intent errorIntent = new Intent(VoiceRecordingService.BROADCAST_ERROR);
+        errorIntent.putExtra(VoiceRecordingService.EXTRA_ERROR_MESSAGE, message);
+        context.sendBroadcast(errorIntent);
     }
 }
@@ -0,0 +1,212 @@
+package com.alex.voicenotes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Streaming energy/zero-crossing voice activity detector. Sits in front of another PcmConsumer and
+// only forwards speech plus a short pre-roll and hangover around it, so long silences never reach
+// the queue file. All buffers are allocated up front; onPcm() does not allocate.
+public class VoiceActivityDetector implements PcmConsumer {
+    private static final int FRAME_MS = 20;
+    private static final float UNVOICED_MARGIN_DB = 6f;
+    private static final float NOISE_FALL_RATE = 0.3f;
+    private static final float NOISE_RISE_RATE_SILENCE = 0.02f;
+    private static final float NOISE_RISE_RATE_SPEECH = 0.005f;
+    private static final float SILENCE_DB = -100f;
+
+    public static class Config {
+        public static final Config DEFAULT = new Config(-55f, 10f, 0.3f, 400, 200);
+
+        // Frames quieter than this (dBFS) are never treated as speech.
+        public final float minEnergyDb;
+        // Speech must be this far above the tracked noise floor.
+        public final float marginDb;
+        // Frames slightly under the threshold still count as speech above this zero-crossing rate,
+        // which keeps unvoiced consonants such as "s" and "f" attached to their words.
+        public final float unvoicedZeroCrossingRate;
+        public final int hangoverMs;
+        public final int preRollMs;
+
+        public Config(float minEnergyDb, float marginDb, float unvoicedZeroCrossingRate,
+                      int hangoverMs, int preRollMs) {
+            this.minEnergyDb = minEnergyDb;
+            this.marginDb = marginDb;
+            this.unvoicedZeroCrossingRate = unvoicedZeroCrossingRate;
+            this.hangoverMs = Math.max(0, hangoverMs);
+            this.preRollMs = Math.max(0, preRollMs);
+        }
+    }
+
+    private final Config config;
+    private final PcmConsumer downstream;
+    private final int sampleRate;
+    private final int frameBytes;
+    private final byte[] frame;
+    private final ByteBuffer frameView;
+    private final int hangoverFrames;
+    private final int preRollFrames;
+    private final byte[] preRoll;
+    private final ByteBuffer preRollView;
+
+    private int frameFill;
+    private int preRollStart;
+    private int preRollCount;
+    private int hangoverLeft;
+    private boolean inSpeech;
+    private float noiseFloorDb;
+    private long inputBytes;
+    private long outputBytes;
+    private int speechRegions;
+    private AudioLevelMeter levelMeter;
+
+    public VoiceActivityDetector(Config config, int sampleRate, PcmConsumer downstream) {
+        this.config = config;
+        this.downstream = downstream;
+        this.sampleRate = sampleRate;
+        frameBytes = sampleRate * FRAME_MS / 1000 * 2;
+        frame = new byte[frameBytes];
+        frameView = ByteBuffer.wrap(frame);
+        hangoverFrames = config.hangoverMs / FRAME_MS;
+        preRollFrames = config.preRollMs / FRAME_MS;
+        preRoll = new byte[preRollFrames * frameBytes];
+        preRollView = ByteBuffer.wrap(preRoll);
+        noiseFloorDb = config.minEnergyDb - config.marginDb;
+    }
+
+    // Publishes the level of every frame to meter from the frame energy loop. Null turns it off.
+    public void setLevelMeter(AudioLevelMeter meter) {
+        levelMeter = meter;
+    }
+
+    @Override
+    public void onPcm(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            int n = Math.min(chunk.remaining(), frameBytes - frameFill);
+            chunk.get(frame, frameFill, n);
+            frameFill += n;
+            if (frameFill == frameBytes) {
+                processFrame();
+                frameFill = 0;
+            }
+        }
+    }
+
+    // Flushes the trailing partial frame. Call once after the last onPcm().
+    public void finish() throws IOException {
+        if (frameFill > 0) {
+            inputBytes += frameFill;
+            if (inSpeech) {
+                write(frameView, 0, frameFill);
+            }
+            frameFill = 0;
+        }
+        preRollCount = 0;
+        inSpeech = false;
+    }
+
+    private void processFrame() throws IOException {
+        inputBytes += frameBytes;
+
+        long sumSquares = 0;
+        int peak = 0;
+        int crossings = 0;
+        int previous = (frame[0] & 0xff) | (frame[1] << 8);
+        for (int i = 0; i < frameBytes; i += 2) {
+            int sample = (frame[i] & 0xff) | (frame[i + 1] << 8);
+            sumSquares += (long) sample * sample;
+            int magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+            if ((sample ^ previous) < 0) {
+                crossings++;
+            }
+            previous = sample;
+        }
+        int samples = frameBytes / 2;
+        if (levelMeter != null) {
+            levelMeter.publish(sumSquares, peak, samples);
+        }
+        double meanSquare = (double) sumSquares / samples / (32768.0 * 32768.0);
+        float energyDb = meanSquare > 0 ? (float) (10 * Math.log10(meanSquare)) : SILENCE_DB;
+        float zeroCrossingRate = (float) crossings / (samples - 1);
+
+        float threshold = Math.max(config.minEnergyDb, noiseFloorDb + config.marginDb);
+        boolean speech = energyDb > threshold
+                || (energyDb > config.minEnergyDb
+                    && energyDb > threshold - UNVOICED_MARGIN_DB
+                    && zeroCrossingRate > config.unvoicedZeroCrossingRate);
+
+        // Minimum tracking: drop quickly to quieter frames, creep up slowly so steady background
+        // noise is learned without speech dragging the floor up.
+        float rate = energyDb < noiseFloorDb ? NOISE_FALL_RATE
+                : speech ? NOISE_RISE_RATE_SPEECH : NOISE_RISE_RATE_SILENCE;
+        noiseFloorDb += (Math.max(energyDb, SILENCE_DB) - noiseFloorDb) * rate;
+
+        if (speech) {
+            if (!inSpeech) {
+                flushPreRoll();
+                inSpeech = true;
+                speechRegions++;
+            }
+            write(frameView, 0, frameBytes);
+            hangoverLeft = hangoverFrames;
+        } else if (inSpeech && hangoverLeft > 0) {
+            write(frameView, 0, frameBytes);
+            hangoverLeft--;
+        } else {
+            inSpeech = false;
+            pushPreRoll();
+        }
+    }
+
+    private void pushPreRoll() {
+        if (preRollFrames == 0) {
+            return;
+        }
+        int slot;
+        if (preRollCount == preRollFrames) {
+            slot = preRollStart;
+            preRollStart = (preRollStart + 1) % preRollFrames;
+        } else {
+            slot = (preRollStart + preRollCount) % preRollFrames;
+            preRollCount++;
+        }
+        System.arraycopy(frame, 0, preRoll, slot * frameBytes, frameBytes);
+    }
+
+    private void flushPreRoll() throws IOException {
+        if (preRollCount == 0) {
+            return;
+        }
+        int firstRun = Math.min(preRollCount, preRollFrames - preRollStart);
+        write(preRollView, preRollStart * frameBytes, firstRun * frameBytes);
+        if (firstRun < preRollCount) {
+            write(preRollView, 0, (preRollCount - firstRun) * frameBytes);
+        }
+        preRollStart = 0;
+        preRollCount = 0;
+    }
+
+    private void write(ByteBuffer view, int offset, int length) throws IOException {
+        view.limit(offset + length).position(offset);
+        downstream.onPcm(view);
+        outputBytes += length;
+    }
+
+    public double getInputSeconds() {
+        return inputBytes / 2.0 / sampleRate;
+    }
+
+    public double getOutputSeconds() {
+        return outputBytes / 2.0 / sampleRate;
+    }
+
+    public double getTrimmedSeconds() {
+        return (inputBytes - outputBytes) / 2.0 / sampleRate;
+    }
+
+    public int getSpeechRegionCount() {
+        return speechRegions;
+    }
+}
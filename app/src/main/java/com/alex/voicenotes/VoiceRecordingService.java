@@ -12,15 +12,13 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Process;
 
 import androidx.core.app.NotificationCompat;
-import androidx.work.Data;
-import androidx.work.OneTimeWorkRequest;
-import androidx.work.WorkManager;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -45,8 +43,12 @@ public class VoiceRecordingService extends Service {
 
     private static volatile boolean sIsRecording = false;
     private static volatile boolean sIsPaused = false;
+    private static volatile AudioLevelMeter sLevelMeter;
 
     private AudioRecorder audioRecorder;
+    private File audioFile;
+    private RecordingSegments segments;
+    private StreamingTranscriber streamingTranscriber;
     private boolean isRecording = false;
     private boolean isPaused = false;
     private Handler mainHandler;
@@ -54,6 +56,8 @@ public class VoiceRecordingService extends Service {
     private int originalVolume;
     private FloatingTranscriptionView floatingView;
     private ExecutorService backgroundExecutor;
+    // Only touched on backgroundExecutor, which orders the prewarm acquire before its release.
+    private boolean holdsWhisperContext;
 
     @Override
     public void onCreate() {
@@ -61,13 +65,19 @@ public class VoiceRecordingService extends Service {
         mainHandler = new Handler(Looper.getMainLooper());
         backgroundExecutor = Executors.newSingleThreadExecutor();
         createNotificationChannel();
+        backgroundExecutor.execute(() -> RecordingRecovery.recoverOrphans(this));
         LogHelper.d(TAG, "Service created");
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent == null) {
+            // Sticky restart after the process died mid-recording; onCreate() already queued
+            // recovery of the orphaned segments.
             LogHelper.d(TAG, "Intent is null");
+            if (!isRecording) {
+                stopSelf();
+            }
             return START_NOT_STICKY;
         }
         String action = intent.getAction();
@@ -82,7 +92,7 @@ public class VoiceRecordingService extends Service {
         } else if (ACTION_RESUME_RECORDING.equals(action)) {
             resumeRecording();
         }
-        return START_NOT_STICKY;
+        return isRecording ? START_STICKY : START_NOT_STICKY;
     }
 
     @Override
@@ -127,17 +137,56 @@ public class VoiceRecordingService extends Service {
             floatingView.updateText(getString(R.string.recording));
         }
 
+        // Load the model while the user is still speaking and hold it until the recording is
+        // queued, so TranscriptionWorker finds it in WhisperContextCache instead of loading it.
+        // The executor thread also saves recordings, so its priority is restored afterwards.
         backgroundExecutor.execute(() -> {
+            int priority = Process.getThreadPriority(Process.myTid());
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
             try {
-                WhisperModelManager.ensureModelAvailable(this);
-                LogHelper.d(TAG, "Whisper model ready");
+                long start = System.nanoTime();
+                WhisperContextCache.acquire(getApplicationContext());
+                holdsWhisperContext = true;
+                LogHelper.d(TAG, "Whisper model ready in " + (System.nanoTime() - start) / 1_000_000 + " ms");
             } catch (Exception e) {
                 LogHelper.e(TAG, "Failed to prepare Whisper model", e);
+            } finally {
+                Process.setThreadPriority(priority);
             }
         });
 
         audioRecorder = new AudioRecorder();
-        audioRecorder.startRecording();
+        audioRecorder.setPreferredCaptureRate(getNativeSampleRate());
+        sLevelMeter = audioRecorder.getLevelMeter();
+        if (AppSettings.isTrimSilenceEnabled(this)) {
+            audioRecorder.setVoiceActivityDetection(VoiceActivityDetector.Config.DEFAULT);
+        }
+        if (AppSettings.isLiveTranscriptionEnabled(this)) {
+            streamingTranscriber = new StreamingTranscriber(this, this::showPartialTranscription);
+            audioRecorder.addConsumer(streamingTranscriber);
+            streamingTranscriber.start();
+        }
+        boolean compressed = AppSettings.isCompressQueueEnabled(this);
+        audioRecorder.setCompressedOutput(compressed);
+        try {
+            audioFile = createQueueFile(compressed);
+            RecordingRecovery.markActive(audioFile.getName());
+            segments = new RecordingSegments(RecordingRecovery.getSegmentsDirectory(this), audioFile.getName());
+            audioRecorder.startRecording(segments.nextSegment());
+        } catch (IOException e) {
+            LogHelper.e(TAG, "Failed to start recording", e);
+            if (segments != null) {
+                segments.deleteAll();
+                segments = null;
+            }
+            if (audioFile != null) {
+                RecordingRecovery.markInactive(audioFile.getName());
+                audioFile = null;
+            }
+            sendErrorBroadcast("Failed to start recording");
+            stopRecording();
+            return;
+        }
 
         sendBroadcast(BROADCAST_RECORDING_STARTED);
         VoiceNotesWidget.updateAllWidgets(this, true);
@@ -149,10 +198,12 @@ public class VoiceRecordingService extends Service {
             return;
         }
         LogHelper.d(TAG, "Stopping recording");
+        boolean wasPaused = isPaused;
         isRecording = false;
         isPaused = false;
         sIsRecording = false;
         sIsPaused = false;
+        sLevelMeter = null;
 
         if (audioManager != null) {
             audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, originalVolume, 0);
@@ -163,48 +214,148 @@ public class VoiceRecordingService extends Service {
             floatingView = null;
         }
 
-        byte[] pcmData = audioRecorder.stopRecording();
-
-        if (pcmData.length > 0) {
-            try {
-                File audioFile = savePcmToFile(pcmData);
-                enqueueTranscription(audioFile);
-            } catch (IOException e) {
-                LogHelper.e(TAG, "Failed to save audio file", e);
-                sendErrorBroadcast("Failed to save recording");
+        if (audioFile != null) {
+            File recording = audioFile;
+            RecordingSegments recordingSegments = segments;
+            // Live text that is only a preview is cancelled below, and the worker transcribes the
+            // file with the user's profile.
+            StreamingTranscriber transcriber = streamingTranscriber != null && streamingTranscriber.isFinalText()
+                    ? streamingTranscriber : null;
+            if (transcriber != null) {
+                streamingTranscriber = null;
+                // Keep a running queue drain off the file while live transcription may still deliver it.
+                TranscriptionWorker.claim(recording);
             }
-        } else {
-            sendErrorBroadcast(getString(R.string.no_speech_detected));
+            audioFile = null;
+            segments = null;
+            boolean captured = wasPaused || finishCapture();
+            backgroundExecutor.execute(() -> saveRecording(recordingSegments, recording, transcriber, captured));
         }
+        if (streamingTranscriber != null) {
+            streamingTranscriber.cancel();
+            streamingTranscriber = null;
+        }
+
+        // Queued behind the prewarm, so the hand-off works even if the user stops before the load
+        // finishes. The cache keeps the context for the worker until its idle timeout.
+        backgroundExecutor.execute(() -> {
+            if (holdsWhisperContext) {
+                holdsWhisperContext = false;
+                WhisperContextCache.release(getApplicationContext());
+            }
+        });
 
         finishService();
     }
 
-    private File savePcmToFile(byte[] pcmData) throws IOException {
-        File audioDir = new File(getCacheDir(), "audio_queue");
-        if (!audioDir.exists()) {
-            audioDir.mkdirs();
+    private int getNativeSampleRate() {
+        if (audioManager == null) {
+            return 0;
         }
-        File audioFile = new File(audioDir, "recording_" + System.currentTimeMillis() + ".pcm");
-        try (FileOutputStream fos = new FileOutputStream(audioFile)) {
-            fos.write(pcmData);
+        String rate = audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE);
+        try {
+            return rate != null ? Integer.parseInt(rate) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
         }
-        LogHelper.d(TAG, "Saved audio to " + audioFile.getAbsolutePath() + " (" + pcmData.length + " bytes)");
-        return audioFile;
     }
 
-    private void enqueueTranscription(File audioFile) {
-        Data inputData = new Data.Builder()
-                .putString(TranscriptionWorker.KEY_AUDIO_FILE_PATH, audioFile.getAbsolutePath())
-                .build();
+    // Stops the recorder. False when a chunk failed to write, which ends the last segment early.
+    private boolean finishCapture() {
+        try {
+            audioRecorder.stopRecording();
+            logSilenceTrimming(audioRecorder.getVoiceActivityDetector());
+            return true;
+        } catch (IOException e) {
+            LogHelper.e(TAG, "Failed to finish recording", e);
+            return false;
+        }
+    }
 
-        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(TranscriptionWorker.class)
-                .setInputData(inputData)
-                .build();
+    // Runs on backgroundExecutor, since joining several segments copies the whole recording. When
+    // anything fails the segments stay in audio_segments, so RecordingRecovery can finish the job
+    // instead of the recording being lost.
+    private void saveRecording(RecordingSegments recordingSegments, File recording,
+                               StreamingTranscriber transcriber, boolean captured) {
+        Context appContext = getApplicationContext();
+        if (!captured) {
+            // Everything written before the failed write is still in the segments. Recovery
+            // finalizes them and queues what it can join.
+            abandonLiveTranscription(transcriber, recording);
+            RecordingRecovery.markInactive(recording.getName());
+            RecordingRecovery.recoverOrphans(appContext);
+            sendErrorBroadcast("Recording was cut short by a write error");
+            return;
+        }
+        try {
+            long bytesWritten = recordingSegments.joinInto(recording);
+            if (bytesWritten > 0) {
+                LogHelper.d(TAG, "Saved audio to " + recording.getAbsolutePath() + " (" + bytesWritten + " bytes)");
+                if (transcriber != null) {
+                    finishLiveTranscription(appContext, transcriber, recording);
+                } else {
+                    TranscriptionWorker.enqueue(appContext);
+                }
+            } else {
+                abandonLiveTranscription(transcriber, recording);
+                recording.delete();
+                sendErrorBroadcast(getString(R.string.no_speech_detected));
+            }
+        } catch (IOException e) {
+            // Most likely a full disk. The next start's recovery retries the join.
+            LogHelper.e(TAG, "Failed to save audio file, keeping its segments", e);
+            abandonLiveTranscription(transcriber, recording);
+            sendErrorBroadcast("Failed to save recording, it will be retried");
+        } finally {
+            RecordingRecovery.markInactive(recording.getName());
+        }
+    }
 
-        WorkManager.getInstance(this)
-                .enqueueUniqueWork("transcription", androidx.work.ExistingWorkPolicy.APPEND, workRequest);
-        LogHelper.d(TAG, "Enqueued transcription for " + audioFile.getName());
+    private static void abandonLiveTranscription(StreamingTranscriber transcriber, File recording) {
+        if (transcriber != null) {
+            transcriber.cancel();
+            TranscriptionWorker.unclaim(recording);
+        }
+    }
+
+    // Only the tail after the last committed segment is left to decode, so the note is usually ready
+    // within one decode pass. The queued audio is kept as a fallback for the worker until then.
+    private static void finishLiveTranscription(Context appContext, StreamingTranscriber transcriber, File recording) {
+        long start = System.nanoTime();
+        String transcription = transcriber.finish();
+        if (transcription == null) {
+            LogHelper.w(TAG, "Live transcription incomplete, queueing " + recording.getName());
+            TranscriptionWorker.unclaim(recording);
+            TranscriptionWorker.enqueue(appContext);
+            return;
+        }
+        LogHelper.d(TAG, "Live transcription finished " + (System.nanoTime() - start) / 1_000_000 + " ms after stop");
+        TranscriptionWorker.deliverTranscription(appContext, transcription);
+        recording.delete();
+        TranscriptionWorker.unclaim(recording);
+    }
+
+    private void showPartialTranscription(String committed, String tentative) {
+        mainHandler.post(() -> {
+            if (floatingView != null && !isPaused) {
+                floatingView.updateText((committed + tentative).trim());
+            }
+        });
+    }
+
+    private void logSilenceTrimming(VoiceActivityDetector vad) {
+        if (vad == null) {
+            return;
+        }
+        LogHelper.i(TAG, String.format(Locale.US,
+                "Silence trimming saved %.1f s of %.1f s captured (%d speech regions)",
+                vad.getTrimmedSeconds(), vad.getInputSeconds(), vad.getSpeechRegionCount()));
+    }
+
+    private File createQueueFile(boolean compressed) {
+        File audioDir = TranscriptionWorker.getQueueDirectory(this);
+        String extension = compressed ? CompressedPcmFormat.EXTENSION : ".pcm";
+        return new File(audioDir, "recording_" + System.currentTimeMillis() + extension);
     }
 
     private void sendErrorBroadcast(String message) {
@@ -221,11 +372,56 @@ public class VoiceRecordingService extends Service {
     }
 
     private void pauseRecording() {
-        LogHelper.d(TAG, "Pause not supported in audio recording mode");
+        if (!isRecording || isPaused) {
+            LogHelper.d(TAG, "Not recording or already paused, ignoring pause");
+            return;
+        }
+        LogHelper.d(TAG, "Pausing recording after segment " + segments.size());
+        isPaused = true;
+        sIsPaused = true;
+
+        // Releases the AudioRecord so the mic and capture threads go idle while paused.
+        try {
+            audioRecorder.stopRecording();
+            logSilenceTrimming(audioRecorder.getVoiceActivityDetector());
+        } catch (IOException e) {
+            LogHelper.e(TAG, "Failed to finish recording segment", e);
+        }
+
+        if (floatingView != null) {
+            floatingView.updateText(getString(R.string.paused));
+        }
+        updateNotification();
     }
 
     private void resumeRecording() {
-        LogHelper.d(TAG, "Resume not supported in audio recording mode");
+        if (!isRecording || !isPaused) {
+            LogHelper.d(TAG, "Not paused, ignoring resume");
+            return;
+        }
+        LogHelper.d(TAG, "Resuming recording");
+        try {
+            audioRecorder.startRecording(segments.nextSegment());
+        } catch (IOException e) {
+            LogHelper.e(TAG, "Failed to resume recording", e);
+            sendErrorBroadcast("Failed to resume recording");
+            stopRecording();
+            return;
+        }
+        isPaused = false;
+        sIsPaused = false;
+
+        if (floatingView != null) {
+            floatingView.updateText(getString(R.string.recording));
+        }
+        updateNotification();
+    }
+
+    private void updateNotification() {
+        NotificationManager manager = getSystemService(NotificationManager.class);
+        if (manager != null) {
+            manager.notify(NOTIFICATION_ID, createNotification());
+        }
     }
 
     private Notification createNotification() {
@@ -239,7 +435,7 @@ public class VoiceRecordingService extends Service {
                 this, 0, openIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
 
         return new NotificationCompat.Builder(this, CHANNEL_ID)
-                .setContentTitle(getString(R.string.recording))
+                .setContentTitle(getString(isPaused ? R.string.paused : R.string.recording))
                 .setSmallIcon(R.drawable.ic_mic)
                 .setContentIntent(openPendingIntent)
                 .addAction(R.drawable.ic_stop, getString(R.string.stop), stopPendingIntent)
@@ -274,4 +470,9 @@ public class VoiceRecordingService extends Service {
     public static boolean isPaused() {
         return sIsPaused;
     }
+
+    // Levels of the current recording for the UI to poll, or null when not recording.
+    public static AudioLevelMeter getLevelMeter() {
+        return sLevelMeter;
+    }
 }
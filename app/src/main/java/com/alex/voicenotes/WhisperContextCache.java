@@ -0,0 +1,172 @@
+package com.alex.voicenotes;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import androidx.annotation.NonNull;
+
+import com.whispercpp.whisper.WhisperContext;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import kotlin.coroutines.EmptyCoroutineContext;
+import kotlinx.coroutines.BuildersKt;
+
+// Keeps one loaded WhisperContext for the whole process so back-to-back transcriptions skip the model
+// load. Users acquire() and release() it like a reference count; once nobody holds it, it is freed
+// after AppSettings.getModelIdleTimeoutMs(), or straight away when the system asks to trim memory.
+// WhisperContext already serializes native calls on its own thread, so concurrent holders are safe.
+public class WhisperContextCache {
+    private static final String TAG = "WhisperContextCache";
+
+    private static final Object lock = new Object();
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "WhisperContextEvictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static WhisperContext context;
+    private static String modelPath;
+    private static int holders;
+    private static ScheduledFuture<?> pendingEviction;
+    private static boolean callbacksRegistered;
+
+    private static int hits;
+    private static int misses;
+    private static long totalLoadMs;
+
+    public static WhisperContext acquire(Context appContext) throws Exception {
+        File modelFile = WhisperModelManager.ensureModelAvailable(appContext);
+        ThreadCalibrationWorker.applyOrSchedule(appContext, modelFile);
+        String path = modelFile.getAbsolutePath();
+        synchronized (lock) {
+            registerCallbacks(appContext);
+            cancelEviction();
+            // A changed model is picked up once the current context is idle; until then callers
+            // share the loaded one rather than holding two models in memory.
+            if (context != null && holders == 0 && !path.equals(modelPath)) {
+                LogHelper.d(TAG, "Model changed, dropping cached context for " + modelPath);
+                freeLocked();
+            }
+            if (context != null) {
+                hits++;
+                holders++;
+                logStats("hit", 0);
+                return context;
+            }
+
+            // Loading under the lock means a second caller waits for this load instead of
+            // starting its own.
+            long start = System.nanoTime();
+            context = WhisperContext.Companion.createContextFromMappedFile(path);
+            long loadMs = (System.nanoTime() - start) / 1_000_000;
+            modelPath = path;
+            misses++;
+            totalLoadMs += loadMs;
+            holders++;
+            logStats("miss", loadMs);
+            return context;
+        }
+    }
+
+    public static void release(Context appContext) {
+        synchronized (lock) {
+            if (holders > 0) {
+                holders--;
+            }
+            if (holders == 0 && context != null) {
+                long idleMs = AppSettings.getModelIdleTimeoutMs(appContext);
+                cancelEviction();
+                pendingEviction = evictor.schedule(() -> evict("idle for " + idleMs + " ms"),
+                        idleMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    public static void evict(String reason) {
+        synchronized (lock) {
+            if (context == null || holders > 0) {
+                return;
+            }
+            LogHelper.d(TAG, "Evicting cached context: " + reason);
+            cancelEviction();
+            freeLocked();
+        }
+    }
+
+    public static boolean isLoaded() {
+        synchronized (lock) {
+            return context != null;
+        }
+    }
+
+    private static void freeLocked() {
+        WhisperContext toFree = context;
+        context = null;
+        modelPath = null;
+        free(toFree);
+    }
+
+    // Releases a context on its own thread and waits for it. Also used for private, uncached contexts.
+    static void free(WhisperContext toFree) {
+        if (toFree == null) {
+            return;
+        }
+        try {
+            BuildersKt.runBlocking(
+                    EmptyCoroutineContext.INSTANCE,
+                    (scope, continuation) -> toFree.release(continuation)
+            );
+        } catch (Throwable e) {
+            LogHelper.e(TAG, "Error releasing context", e);
+        }
+    }
+
+    private static void cancelEviction() {
+        if (pendingEviction != null) {
+            pendingEviction.cancel(false);
+            pendingEviction = null;
+        }
+    }
+
+    private static void logStats(String outcome, long loadMs) {
+        int lookups = hits + misses;
+        LogHelper.i(TAG, String.format(Locale.US,
+                "Context cache %s%s: %d hits, %d misses (%.0f%% hit rate), average load %d ms",
+                outcome, loadMs > 0 ? " (loaded in " + loadMs + " ms)" : "",
+                hits, misses, 100.0 * hits / lookups, misses > 0 ? totalLoadMs / misses : 0));
+    }
+
+    private static void registerCallbacks(Context appContext) {
+        if (callbacksRegistered) {
+            return;
+        }
+        callbacksRegistered = true;
+        appContext.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // Evicting can wait on a model load in progress, so keep it off the main thread.
+                if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW
+                        || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+                    evictor.execute(() -> evict("trim memory level " + level));
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                evictor.execute(() -> evict("low memory"));
+            }
+
+            @Override
+            public void onConfigurationChanged(@NonNull Configuration newConfig) {
+            }
+        });
+    }
+}
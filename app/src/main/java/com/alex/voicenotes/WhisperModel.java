@@ -0,0 +1,40 @@
+package com.alex.voicenotes;
+
+// The ggml models the app can run, as published in the ggerganov/whisper.cpp model repository. Each
+// one is either bundled under assets/models/ or sideloaded into the app's external "models"
+// directory, ideally together with a <file>.sha256 checksum in sha256sum format. The exact file size
+// is checked when no checksum is shipped, and also used for display and to find the nearest
+// substitute when a profile's preferred model is not present.
+public enum WhisperModel {
+    TINY("Tiny", "ggml-tiny.bin", 77_691_713L),
+    TINY_Q8_0("Tiny q8_0", "ggml-tiny-q8_0.bin", 43_537_433L),
+    TINY_Q5_1("Tiny q5_1", "ggml-tiny-q5_1.bin", 32_152_673L),
+    BASE("Base", "ggml-base.bin", 147_951_465L),
+    BASE_Q8_0("Base q8_0", "ggml-base-q8_0.bin", 81_768_585L),
+    BASE_Q5_1("Base q5_1", "ggml-base-q5_1.bin", 59_707_625L),
+    SMALL("Small", "ggml-small.bin", 487_601_967L),
+    SMALL_Q8_0("Small q8_0", "ggml-small-q8_0.bin", 264_464_607L),
+    SMALL_Q5_1("Small q5_1", "ggml-small-q5_1.bin", 190_085_487L);
+
+    public final String title;
+    public final String fileName;
+    public final long sizeBytes;
+    public final int sizeMb;
+
+    WhisperModel(String title, String fileName, long sizeBytes) {
+        this.title = title;
+        this.fileName = fileName;
+        this.sizeBytes = sizeBytes;
+        this.sizeMb = (int) Math.round(sizeBytes / (1024.0 * 1024.0));
+    }
+
+    // Returns null for unknown names, so a stale preference falls back to the profile default.
+    public static WhisperModel fromName(String name) {
+        for (WhisperModel model : values()) {
+            if (model.name().equals(name)) {
+                return model;
+            }
+        }
+        return null;
+    }
+}
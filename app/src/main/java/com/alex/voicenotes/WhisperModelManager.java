@@ -1,49 +1,304 @@
 package com.alex.voicenotes;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 
+// Installs catalog models from the APK's assets or from the sideload directory into internal
+// storage. The copy goes channel to channel, is checked against the model's SHA-256 and only then
+// renamed into place, so a model file under its final name is always complete. A checksum marker
+// written after the rename records what was installed; a file without one, or whose marker no
+// longer matches the source, is installed again.
 public class WhisperModelManager {
     private static final String TAG = "WhisperModelManager";
-    private static final String MODEL_NAME = "ggml-tiny.bin";
-    private static final String ASSETS_PATH = "models/" + MODEL_NAME;
+    private static final String ASSETS_DIR = "models";
+    private static final String SIDELOAD_DIR = "models";
+    private static final String CHECKSUM_SUFFIX = ".sha256";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int DIGEST_WINDOW = 16 * 1024 * 1024;
+
+    // Where a model can be installed from: an open channel positioned at the model's first byte,
+    // and whatever has to be closed along with it.
+    private static final class Source implements Closeable {
+        final FileChannel channel;
+        final long length;
+        final String checksum;
+        final String description;
+        private final Closeable owner;
+
+        Source(FileChannel channel, long length, String checksum, String description, Closeable owner) {
+            this.channel = channel;
+            this.length = length;
+            this.checksum = checksum;
+            this.description = description;
+            this.owner = owner;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                if (owner != null) {
+                    owner.close();
+                }
+            }
+        }
+    }
 
     public static File getModelFile(Context context) {
-        return new File(context.getFilesDir(), MODEL_NAME);
+        return getModelFile(context, getActiveModel(context));
+    }
+
+    public static File getModelFile(Context context, WhisperModel model) {
+        return new File(context.getFilesDir(), model.fileName);
+    }
+
+    // Sideloaded models are pushed here, e.g. adb push ggml-base.bin ggml-base.bin.sha256 <dir>.
+    public static File getSideloadDirectory(Context context) {
+        return context.getExternalFilesDir(SIDELOAD_DIR);
+    }
+
+    // Catalog models that are installed or can be installed from a bundled or sideloaded copy.
+    public static List<WhisperModel> getAvailableModels(Context context) {
+        List<String> assets = listAssets(context);
+        File sideloadDir = getSideloadDirectory(context);
+        List<WhisperModel> available = new ArrayList<>();
+        for (WhisperModel model : WhisperModel.values()) {
+            if (assets.contains(model.fileName)
+                    || (sideloadDir != null && new File(sideloadDir, model.fileName).isFile())
+                    || getModelFile(context, model).isFile()) {
+                available.add(model);
+            }
+        }
+        return available;
+    }
+
+    // The model for the current profile: the user's pick if it is available, else the profile's
+    // preferred model, else the available model closest to it in size.
+    public static WhisperModel getActiveModel(Context context) {
+        DecodingProfile profile = AppSettings.getDecodingProfile(context);
+        List<WhisperModel> available = getAvailableModels(context);
+        WhisperModel chosen = AppSettings.getModel(context, profile);
+        if (chosen != null && available.contains(chosen)) {
+            return chosen;
+        }
+        WhisperModel preferred = profile.preferredModel;
+        if (available.isEmpty() || available.contains(preferred)) {
+            return preferred;
+        }
+        WhisperModel nearest = available.get(0);
+        for (WhisperModel model : available) {
+            if (Math.abs(model.sizeMb - preferred.sizeMb) < Math.abs(nearest.sizeMb - preferred.sizeMb)) {
+                nearest = model;
+            }
+        }
+        return nearest;
     }
 
     public static boolean isModelAvailable(Context context) {
-        File modelFile = getModelFile(context);
-        return modelFile.exists() && modelFile.length() > 0;
+        return isInstalled(context, getActiveModel(context));
     }
 
-    public static void copyModelFromAssets(Context context) throws IOException {
-        File modelFile = getModelFile(context);
-        if (modelFile.exists()) {
-            LogHelper.d(TAG, "Model already exists at " + modelFile.getAbsolutePath());
-            return;
+    public static boolean isInstalled(Context context, WhisperModel model) {
+        File modelFile = getModelFile(context, model);
+        String installed = readChecksum(checksumFile(modelFile));
+        if (!modelFile.isFile() || installed == null) {
+            return false;
         }
+        try (Source source = openSourceOrNull(context, model)) {
+            // Nothing to compare against once the source is gone; the marker alone vouches for it.
+            return source == null
+                    || (source.length == modelFile.length()
+                    && (source.checksum == null
+                        ? modelFile.length() == model.sizeBytes
+                        : source.checksum.equalsIgnoreCase(installed)));
+        } catch (IOException e) {
+            LogHelper.w(TAG, "Could not check the source of " + model.fileName + ": " + e.getMessage());
+            return true;
+        }
+    }
 
-        LogHelper.d(TAG, "Copying model from assets to " + modelFile.getAbsolutePath());
-        try (InputStream is = context.getAssets().open(ASSETS_PATH);
-             FileOutputStream fos = new FileOutputStream(modelFile)) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = is.read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesRead);
+    // Makes sure the active model is installed and returns its file. Installs are serialized on the
+    // class: the prewarm, the context cache, live transcription and calibration can all ask at once,
+    // and they share the temp file. A caller that waited finds the model installed.
+    public static synchronized File ensureModelAvailable(Context context) throws IOException {
+        WhisperModel model = getActiveModel(context);
+        if (!isInstalled(context, model)) {
+            install(context, model);
+        }
+        return getModelFile(context, model);
+    }
+
+    public static synchronized void install(Context context, WhisperModel model) throws IOException {
+        File modelFile = getModelFile(context, model);
+        File temp = new File(modelFile.getPath() + TEMP_SUFFIX);
+        long start = System.nanoTime();
+        String actual;
+        try (Source source = openSourceOrNull(context, model)) {
+            if (source == null) {
+                throw new FileNotFoundException("Model " + model.fileName + " is neither bundled nor sideloaded");
+            }
+            LogHelper.d(TAG, "Installing " + model.fileName + " from " + source.description
+                    + " (" + source.length + " bytes)");
+            // Without a checksum the catalog size is all there is to catch a truncated copy.
+            if (source.checksum == null && source.length != model.sizeBytes) {
+                throw new IOException("Model " + model.fileName + " from " + source.description + " is "
+                        + source.length + " bytes, expected " + model.sizeBytes);
             }
-            fos.flush();
+            copy(source, temp);
+            actual = sha256(temp);
+            if (source.checksum == null) {
+                LogHelper.w(TAG, "No checksum shipped for " + model.fileName
+                        + ", verified against the catalog size only");
+            } else if (!source.checksum.equalsIgnoreCase(actual)) {
+                throw new IOException("Checksum mismatch for " + model.fileName
+                        + ": expected " + source.checksum + ", got " + actual);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        if (!temp.renameTo(modelFile)) {
+            temp.delete();
+            throw new IOException("Could not move " + temp.getName() + " into place");
         }
-        LogHelper.d(TAG, "Model copied successfully, size: " + modelFile.length());
+        writeChecksum(checksumFile(modelFile), actual, model.fileName);
+        LogHelper.i(TAG, String.format(Locale.US, "Installed %s (%d bytes) in %d ms",
+                model.fileName, modelFile.length(), (System.nanoTime() - start) / 1_000_000));
     }
 
-    public static void ensureModelAvailable(Context context) throws IOException {
-        if (!isModelAvailable(context)) {
-            copyModelFromAssets(context);
+    // Copies through FileChannel.transferFrom, which the platform can serve without a user-space
+    // buffer. A short copy is reported rather than left for the checksum to catch.
+    private static void copy(Source source, File target) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(target);
+             FileChannel out = fos.getChannel()) {
+            long done = 0;
+            while (done < source.length) {
+                long n = out.transferFrom(source.channel, done, source.length - done);
+                if (n <= 0) {
+                    throw new IOException("Model source ended after " + done + " of " + source.length + " bytes");
+                }
+                done += n;
+            }
+            out.force(true);
+        }
+    }
+
+    // Prefers a sideloaded copy, so a model can be replaced without rebuilding the app. Bundled
+    // models must be stored uncompressed (see noCompress in build.gradle) to be opened by descriptor.
+    private static Source openSourceOrNull(Context context, WhisperModel model) throws IOException {
+        File sideloadDir = getSideloadDirectory(context);
+        File sideloaded = sideloadDir != null ? new File(sideloadDir, model.fileName) : null;
+        if (sideloaded != null && sideloaded.isFile()) {
+            FileChannel channel = new FileInputStream(sideloaded).getChannel();
+            return new Source(channel, channel.size(), readChecksum(checksumFile(sideloaded)),
+                    sideloaded.getAbsolutePath(), null);
+        }
+        String assetPath = ASSETS_DIR + "/" + model.fileName;
+        if (!listAssets(context).contains(model.fileName)) {
+            return null;
+        }
+        AssetFileDescriptor afd;
+        try {
+            afd = context.getAssets().openFd(assetPath);
+        } catch (FileNotFoundException e) {
+            throw new IOException("Bundled model " + assetPath + " is compressed in the APK", e);
+        }
+        FileChannel channel = new FileInputStream(afd.getFileDescriptor()).getChannel();
+        channel.position(afd.getStartOffset());
+        String checksum;
+        try (InputStream in = context.getAssets().open(assetPath + CHECKSUM_SUFFIX)) {
+            checksum = parseChecksum(new InputStreamReader(in, StandardCharsets.UTF_8));
+        } catch (FileNotFoundException e) {
+            checksum = null;
+        }
+        return new Source(channel, afd.getLength(), checksum, "assets/" + assetPath, afd);
+    }
+
+    private static List<String> listAssets(Context context) {
+        try {
+            String[] names = context.getAssets().list(ASSETS_DIR);
+            return names != null ? Arrays.asList(names) : new ArrayList<>();
+        } catch (IOException e) {
+            return new ArrayList<>();
+        }
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += DIGEST_WINDOW) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(DIGEST_WINDOW, size - position)));
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format(Locale.US, "%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static File checksumFile(File modelFile) {
+        return new File(modelFile.getPath() + CHECKSUM_SUFFIX);
+    }
+
+    private static String readChecksum(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return parseChecksum(reader);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // First token of a sha256sum line: "<64 hex digits>  <file name>".
+    private static String parseChecksum(Reader reader) throws IOException {
+        String line = new BufferedReader(reader).readLine();
+        if (line == null) {
+            return null;
+        }
+        String hash = line.trim().split("\\s+")[0];
+        return hash.matches("[0-9a-fA-F]{64}") ? hash.toLowerCase(Locale.ROOT) : null;
+    }
+
+    private static void writeChecksum(File file, String hash, String fileName) throws IOException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            fos.write((hash + "  " + fileName + "\n").getBytes(StandardCharsets.UTF_8));
+            fos.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not write " + file.getName());
         }
     }
 }
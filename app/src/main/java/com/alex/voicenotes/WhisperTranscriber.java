@@ -3,70 +3,269 @@ package com.alex.voicenotes;
 import android.content.Context;
 
 import com.whispercpp.whisper.WhisperContext;
+import com.whispercpp.whisper.WhisperCpuConfig;
+import com.whispercpp.whisper.WhisperDecodeParams;
+import com.whispercpp.whisper.WhisperProgressListener;
+import com.whispercpp.whisper.WhisperSegment;
 
-import java.io.File;
-
-import kotlin.coroutines.EmptyCoroutineContext;
-import kotlinx.coroutines.BuildersKt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 public class WhisperTranscriber {
     private static final String TAG = "WhisperTranscriber";
+    private static final int SAMPLE_RATE = 16000;
+    // Recordings shorter than this go through a single whisper_full call.
+    private static final int PARALLEL_MIN_SAMPLES = SAMPLE_RATE * 180;
+    private static final int MIN_CHUNK_SAMPLES = SAMPLE_RATE * 60;
+    private static final int MAX_CHUNK_SAMPLES = SAMPLE_RATE * 300;
+    private static final int CUT_SEARCH_SAMPLES = SAMPLE_RATE * 10;
+    private static final int CHUNK_OVERLAP_SAMPLES = SAMPLE_RATE / 2;
+    // Each decoder state holds its own buffers, so cap how many run at once.
+    private static final int MAX_PARALLEL_STATES = 3;
+    private Context appContext;
     private WhisperContext whisperContext;
+    private DecodingProfile profile = DecodingProfile.DEFAULT;
+    private WhisperDecodeParams decodeParams = DecodingProfile.DEFAULT.toParams("en");
+    private volatile CompletableFuture<?> inFlight;
 
+    // Takes a reference on the process-wide context, loading the model only if it is not cached.
     public void initialize(Context context) throws Exception {
-        WhisperModelManager.ensureModelAvailable(context);
-        File modelFile = WhisperModelManager.getModelFile(context);
-        LogHelper.d(TAG, "Loading model from: " + modelFile.getAbsolutePath());
-        whisperContext = WhisperContext.Companion.createContextFromFile(modelFile.getAbsolutePath());
+        appContext = context.getApplicationContext();
+        setProfile(AppSettings.getDecodingProfile(appContext), AppSettings.getTranscriptionLanguage(appContext));
+        whisperContext = WhisperContextCache.acquire(appContext);
         LogHelper.d(TAG, "Whisper context initialized");
     }
 
+    // language is a whisper language code, or null to detect it.
+    public void setProfile(DecodingProfile profile, String language) {
+        this.profile = profile;
+        this.decodeParams = profile.toParams(language);
+    }
+
     public String transcribe(float[] audioSamples) throws Exception {
+        return await(transcribeAsync(audioSamples), 0);
+    }
+
+    // Blocks until the transcription finishes or the deadline passes, in which case the work is
+    // cancelled and a TimeoutException thrown. A timeout of 0 waits indefinitely.
+    public String transcribe(float[] audioSamples, long timeoutMs) throws Exception {
+        return await(transcribeAsync(audioSamples), timeoutMs);
+    }
+
+    public String transcribe(float[] audioSamples, long timeoutMs, WhisperProgressListener listener)
+            throws Exception {
+        return await(transcribeAsync(audioSamples, listener), timeoutMs);
+    }
+
+    // Queues the transcription on the context's own thread and returns at once. Cancelling the
+    // future, or calling cancel(), drops work that has not started yet and aborts a running decode
+    // inside whisper, so the cores are free again almost immediately.
+    public CompletableFuture<String> transcribeAsync(float[] audioSamples) {
+        return transcribeAsync(audioSamples, null);
+    }
+
+    // As above, reporting progress in percent to listener (which may be null) from the decoding
+    // thread.
+    public CompletableFuture<String> transcribeAsync(float[] audioSamples, WhisperProgressListener listener) {
+        return decode(audioSamples, listener, AudioChunker::joinText);
+    }
+
+    // transcribeAsync that keeps whisper's segments, with their times in milliseconds from the
+    // start of the recording and their mean token probability.
+    public CompletableFuture<List<WhisperSegment>> transcribeSegmentsAsync(float[] audioSamples,
+                                                                           WhisperProgressListener listener) {
+        return decode(audioSamples, listener, segments -> segments);
+    }
+
+    private <R> CompletableFuture<R> decode(float[] audioSamples, WhisperProgressListener listener,
+                                            Function<List<WhisperSegment>, R> output) {
         if (whisperContext == null) {
             throw new IllegalStateException("Whisper context not initialized");
         }
 
         LogHelper.d(TAG, "Transcribing " + audioSamples.length + " samples");
 
-        final String[] result = new String[1];
-        final Throwable[] error = new Throwable[1];
-
-        Thread transcribeThread = new Thread(() -> {
-            try {
-                Object transcriptionResult = BuildersKt.runBlocking(
-                        EmptyCoroutineContext.INSTANCE,
-                        (scope, continuation) -> whisperContext.transcribeData(audioSamples, false, continuation)
-                );
-                result[0] = transcriptionResult != null ? transcriptionResult.toString() : "";
-            } catch (Throwable e) {
-                error[0] = e;
+        int parallelism = getParallelism();
+        if (audioSamples.length >= PARALLEL_MIN_SAMPLES && parallelism > 1) {
+            return decodeChunked(audioSamples, parallelism, listener, output);
+        }
+        return decodeWhole(audioSamples, listener, output);
+    }
+
+    // One whisper_full call over the whole recording on the context's default state.
+    public CompletableFuture<String> transcribeWholeAsync(float[] audioSamples, WhisperProgressListener listener) {
+        return decodeWhole(audioSamples, listener, AudioChunker::joinText);
+    }
+
+    private <R> CompletableFuture<R> decodeWhole(float[] audioSamples, WhisperProgressListener listener,
+                                                 Function<List<WhisperSegment>, R> output) {
+        if (whisperContext == null) {
+            throw new IllegalStateException("Whisper context not initialized");
+        }
+        long start = System.nanoTime();
+        return track(whisperContext.transcribeSegmentsAsync(audioSamples, decodeParams, listener),
+                segments -> output.apply(finishWhole(segments, audioSamples.length, start)));
+    }
+
+    // Splits long recordings at quiet points and decodes the chunks concurrently on separate whisper
+    // states that share the loaded model. Chunks are sized so each worker gets a few of them, which
+    // evens out the load when some chunks hold more speech than others.
+    public CompletableFuture<String> transcribeChunkedAsync(float[] audioSamples, int parallelism,
+                                                            WhisperProgressListener listener) {
+        return decodeChunked(audioSamples, parallelism, listener, AudioChunker::joinText);
+    }
+
+    private <R> CompletableFuture<R> decodeChunked(float[] audioSamples, int parallelism,
+                                                   WhisperProgressListener listener,
+                                                   Function<List<WhisperSegment>, R> output) {
+        if (whisperContext == null) {
+            throw new IllegalStateException("Whisper context not initialized");
+        }
+        List<AudioChunker.Chunk> chunks = AudioChunker.split(audioSamples, SAMPLE_RATE,
+                chunkTarget(audioSamples.length, parallelism), CUT_SEARCH_SAMPLES, CHUNK_OVERLAP_SAMPLES);
+        List<float[]> chunkAudio = new ArrayList<>(chunks.size());
+        for (AudioChunker.Chunk chunk : chunks) {
+            chunkAudio.add(AudioChunker.copyOf(audioSamples, chunk));
+        }
+
+        long start = System.nanoTime();
+        return track(whisperContext.transcribeChunksAsync(chunkAudio, parallelism, listener, decodeParams),
+                results -> output.apply(finishChunked(chunks, results, audioSamples.length, parallelism, start)));
+    }
+
+    public String transcribePcm16(ByteBuffer pcm, long timeoutMs, WhisperProgressListener listener) throws Exception {
+        return await(transcribePcm16Async(pcm, listener), timeoutMs);
+    }
+
+    // transcribeAsync for 16 kHz PCM16 between position and limit of a direct buffer, such as a
+    // memory-mapped queue file. Native code converts the samples to floats, and long recordings are
+    // split into slices of the same buffer, so the audio is never copied onto the Java heap.
+    public CompletableFuture<String> transcribePcm16Async(ByteBuffer pcm, WhisperProgressListener listener) {
+        return decodePcm16(pcm, listener, AudioChunker::joinText);
+    }
+
+    public List<WhisperSegment> transcribePcm16Segments(ByteBuffer pcm, long timeoutMs,
+                                                        WhisperProgressListener listener) throws Exception {
+        return await(transcribePcm16SegmentsAsync(pcm, listener), timeoutMs);
+    }
+
+    // transcribeSegmentsAsync for PCM16 in a direct buffer.
+    public CompletableFuture<List<WhisperSegment>> transcribePcm16SegmentsAsync(ByteBuffer pcm,
+                                                                                WhisperProgressListener listener) {
+        return decodePcm16(pcm, listener, segments -> segments);
+    }
+
+    private <R> CompletableFuture<R> decodePcm16(ByteBuffer pcm, WhisperProgressListener listener,
+                                                 Function<List<WhisperSegment>, R> output) {
+        if (whisperContext == null) {
+            throw new IllegalStateException("Whisper context not initialized");
+        }
+        ByteBuffer samples = pcm.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int sampleCount = samples.remaining() / 2;
+        LogHelper.d(TAG, "Transcribing " + sampleCount + " PCM16 samples");
+
+        int parallelism = getParallelism();
+        long start = System.nanoTime();
+        if (sampleCount >= PARALLEL_MIN_SAMPLES && parallelism > 1) {
+            List<AudioChunker.Chunk> chunks = AudioChunker.split(samples.asShortBuffer(), SAMPLE_RATE,
+                    chunkTarget(sampleCount, parallelism), CUT_SEARCH_SAMPLES, CHUNK_OVERLAP_SAMPLES);
+            List<ByteBuffer> chunkAudio = new ArrayList<>(chunks.size());
+            for (AudioChunker.Chunk chunk : chunks) {
+                chunkAudio.add(AudioChunker.slice(samples, chunk));
             }
-        });
+            return track(whisperContext.transcribePcm16ChunksAsync(chunkAudio, parallelism, listener, decodeParams),
+                    results -> output.apply(finishChunked(chunks, results, sampleCount, parallelism, start)));
+        }
+        return track(whisperContext.transcribePcm16SegmentsAsync(samples, decodeParams, listener),
+                segments -> output.apply(finishWhole(segments, sampleCount, start)));
+    }
 
-        transcribeThread.start();
-        transcribeThread.join();
+    // Cancels whatever this transcriber has in flight. Safe to call from any thread.
+    public void cancel() {
+        CompletableFuture<?> work = inFlight;
+        if (work != null && work.cancel(true)) {
+            LogHelper.d(TAG, "Transcription cancelled");
+        }
+    }
 
-        if (error[0] != null) {
-            if (error[0] instanceof Exception) {
-                throw (Exception) error[0];
+    public static <T> T await(CompletableFuture<T> future, long timeoutMs) throws Exception {
+        try {
+            return timeoutMs > 0 ? future.get(timeoutMs, TimeUnit.MILLISECONDS) : future.get();
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new TimeoutException("Transcription did not finish within " + timeoutMs + " ms");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
             }
-            throw new Exception("Transcription error", error[0]);
+            throw new Exception("Transcription error", cause);
         }
+    }
+
+    // One line per transcription so profiles can be compared from the log viewer. A real-time factor
+    // of 0.25 means a minute of audio took 15 s.
+    private void logRealtimeFactor(int samples, long startNanos) {
+        long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000;
+        long audioMs = samples * 1000L / SAMPLE_RATE;
+        LogHelper.i(TAG, String.format(Locale.US, "Profile %s (%s): %d ms of audio in %d ms, real-time factor %.3f",
+                profile.name(), decodeParams, audioMs, elapsedMs, (double) elapsedMs / Math.max(1, audioMs)));
+    }
+
+    private static int chunkTarget(int sampleCount, int parallelism) {
+        return Math.max(MIN_CHUNK_SAMPLES, Math.min(MAX_CHUNK_SAMPLES, sampleCount / (parallelism * 3)));
+    }
+
+    private List<WhisperSegment> finishWhole(List<WhisperSegment> segments, int sampleCount, long startNanos) {
+        logRealtimeFactor(sampleCount, startNanos);
+        return segments;
+    }
+
+    private List<WhisperSegment> finishChunked(List<AudioChunker.Chunk> chunks, List<List<WhisperSegment>> results,
+                                 int sampleCount, int parallelism, long startNanos) {
+        long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000;
+        double audioSeconds = (double) sampleCount / SAMPLE_RATE;
+        LogHelper.i(TAG, String.format(Locale.US,
+                "Chunked transcription: %d chunks on %d states, %.0f s of audio in %d ms (%.1fx realtime)",
+                chunks.size(), parallelism, audioSeconds, elapsedMs, audioSeconds * 1000 / Math.max(1, elapsedMs)));
+        logRealtimeFactor(sampleCount, startNanos);
+        return AudioChunker.merge(chunks, results, SAMPLE_RATE);
+    }
+
+    // Maps the native result and remembers the work so cancel() can reach it. Cancelling the
+    // returned future is forwarded to the native one, which is what stops the coroutine.
+    private <T, R> CompletableFuture<R> track(CompletableFuture<T> work, Function<T, R> map) {
+        CompletableFuture<R> result = work.thenApply(map);
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                work.cancel(true);
+            }
+        });
+        inFlight = result;
+        return result;
+    }
 
-        return result[0] != null ? result[0].trim() : "";
+    public static int getParallelism() {
+        int threads = WhisperCpuConfig.INSTANCE.getPreferredThreadCount();
+        return Math.max(1, Math.min(MAX_PARALLEL_STATES, threads / 2));
     }
 
+    // Returns the context to the cache, which frees it once it has been idle for a while.
     public void release() {
         if (whisperContext != null) {
-            try {
-                BuildersKt.runBlocking(
-                        EmptyCoroutineContext.INSTANCE,
-                        (scope, continuation) -> whisperContext.release(continuation)
-                );
-            } catch (Throwable e) {
-                LogHelper.e(TAG, "Error releasing context", e);
-            }
             whisperContext = null;
+            WhisperContextCache.release(appContext);
         }
     }
 
@@ -0,0 +1,112 @@
+package com.alex.voicenotes;
+
+import com.whispercpp.whisper.WhisperSegment;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AudioChunkerTest {
+    private static final int SAMPLE_RATE = 16000;
+
+    @Test
+    public void split_cutsInsidePausesAndCoversEverything() {
+        // 3 s bursts of tone separated by 400 ms of silence.
+        float[] samples = new float[SAMPLE_RATE * 100];
+        int period = SAMPLE_RATE * 34 / 10;
+        for (int i = 0; i < samples.length; i++) {
+            if (i % period < SAMPLE_RATE * 3) {
+                samples[i] = (float) (0.5 * Math.sin(2 * Math.PI * 220 * i / SAMPLE_RATE));
+            }
+        }
+        List<AudioChunker.Chunk> chunks = AudioChunker.split(
+                samples, SAMPLE_RATE, SAMPLE_RATE * 20, SAMPLE_RATE * 2, SAMPLE_RATE / 2);
+
+        assertTrue(chunks.size() >= 4);
+        assertEquals(0, chunks.get(0).start);
+        assertEquals(samples.length, chunks.get(chunks.size() - 1).end);
+        for (int c = 0; c < chunks.size() - 1; c++) {
+            int cut = chunks.get(c).end;
+            assertTrue("cut at " + cut + " is not in a pause", cut % period >= SAMPLE_RATE * 3);
+            assertEquals(cut - SAMPLE_RATE / 2, chunks.get(c + 1).start);
+            assertTrue(Math.abs(cut - chunks.get(c).start - SAMPLE_RATE * 20) <= SAMPLE_RATE * 3);
+        }
+    }
+
+    @Test
+    public void split_pcm16MatchesFloatPlanAndSlicesWithoutCopying() {
+        float[] samples = new float[SAMPLE_RATE * 100];
+        ByteBuffer pcm = ByteBuffer.allocateDirect(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        int period = SAMPLE_RATE * 34 / 10;
+        for (int i = 0; i < samples.length; i++) {
+            short value = i % period < SAMPLE_RATE * 3
+                    ? (short) (16000 * Math.sin(2 * Math.PI * 220 * i / SAMPLE_RATE)) : 0;
+            samples[i] = value / 32768.0f;
+            pcm.putShort(i * 2, value);
+        }
+        List<AudioChunker.Chunk> expected = AudioChunker.split(
+                samples, SAMPLE_RATE, SAMPLE_RATE * 20, SAMPLE_RATE * 2, SAMPLE_RATE / 2);
+        List<AudioChunker.Chunk> chunks = AudioChunker.split(
+                pcm.asShortBuffer(), SAMPLE_RATE, SAMPLE_RATE * 20, SAMPLE_RATE * 2, SAMPLE_RATE / 2);
+
+        assertEquals(expected.size(), chunks.size());
+        for (int c = 0; c < chunks.size(); c++) {
+            AudioChunker.Chunk chunk = chunks.get(c);
+            assertEquals(expected.get(c).start, chunk.start);
+            assertEquals(expected.get(c).end, chunk.end);
+            ByteBuffer slice = AudioChunker.slice(pcm, chunk);
+            assertTrue(slice.isDirect());
+            assertEquals((chunk.end - chunk.start) * 2, slice.remaining());
+            assertEquals(pcm.getShort(chunk.start * 2), slice.getShort(0));
+        }
+    }
+
+    @Test
+    public void split_shortAudioIsOneChunk() {
+        float[] samples = new float[SAMPLE_RATE * 21];
+        List<AudioChunker.Chunk> chunks = AudioChunker.split(
+                samples, SAMPLE_RATE, SAMPLE_RATE * 20, SAMPLE_RATE * 2, SAMPLE_RATE / 2);
+        assertEquals(1, chunks.size());
+        assertEquals(samples.length, chunks.get(0).end);
+    }
+
+    @Test
+    public void merge_offsetsChunksAndDropsOverlapRepeats() {
+        List<AudioChunker.Chunk> chunks = AudioChunker.split(
+                new float[SAMPLE_RATE * 38], SAMPLE_RATE, SAMPLE_RATE * 20, SAMPLE_RATE * 2, SAMPLE_RATE / 2);
+        assertEquals(2, chunks.size());
+        long secondStartMs = chunks.get(1).start * 1000L / SAMPLE_RATE;
+        long cutMs = chunks.get(0).end * 1000L / SAMPLE_RATE;
+
+        List<List<WhisperSegment>> results = Arrays.asList(
+                Arrays.asList(
+                        new WhisperSegment(0, 5000, " Hello there."),
+                        new WhisperSegment(5000, cutMs, " This is the end of one.")),
+                Arrays.asList(
+                        new WhisperSegment(0, 300, " one."),
+                        new WhisperSegment(0, cutMs - secondStartMs + 100, " This is the end of one!"),
+                        new WhisperSegment(600, 4000, " And the next part.", 0.75f)));
+
+        List<WhisperSegment> merged = AudioChunker.merge(chunks, results, SAMPLE_RATE);
+        assertEquals(3, merged.size());
+        assertEquals(secondStartMs + 600, merged.get(2).getStartMs());
+        assertEquals(0.75f, merged.get(2).getProbability(), 0f);
+        assertEquals("Hello there. This is the end of one. And the next part.", AudioChunker.joinText(merged));
+    }
+
+    @Test
+    public void merge_emptyResults() {
+        List<AudioChunker.Chunk> chunks = AudioChunker.split(
+                new float[SAMPLE_RATE], SAMPLE_RATE, SAMPLE_RATE * 20, SAMPLE_RATE * 2, SAMPLE_RATE / 2);
+        List<WhisperSegment> merged = AudioChunker.merge(
+                chunks, Collections.singletonList(Collections.<WhisperSegment>emptyList()), SAMPLE_RATE);
+        assertEquals("", AudioChunker.joinText(merged));
+    }
+}
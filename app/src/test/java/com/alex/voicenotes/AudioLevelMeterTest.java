@@ -0,0 +1,106 @@
+package com.alex.voicenotes;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+
+public class AudioLevelMeterTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void update_measuresRmsAndPeakOfChunk() {
+        AudioLevelMeter meter = new AudioLevelMeter();
+        ByteBuffer pcm = ByteBuffer.allocateDirect(3200).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 1600; i++) {
+            pcm.putShort((short) Math.round(16384 * Math.sin(2 * Math.PI * i / 32.0)));
+        }
+        pcm.flip();
+        meter.update(pcm, pcm.limit());
+
+        long levels = meter.getLevels();
+        assertEquals(0.5f / Math.sqrt(2), AudioLevelMeter.rmsOf(levels), 1e-3f);
+        assertEquals(0.5f, AudioLevelMeter.peakOf(levels), 1e-3f);
+        assertEquals(-9.03f, AudioLevelMeter.toDb(AudioLevelMeter.rmsOf(levels)), 0.05f);
+        assertEquals(0, pcm.position());
+        assertEquals(3200, pcm.limit());
+    }
+
+    @Test
+    public void update_handlesFullScaleNegativeSamples() {
+        AudioLevelMeter meter = new AudioLevelMeter();
+        ByteBuffer pcm = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort(Short.MIN_VALUE).putShort(Short.MIN_VALUE);
+        meter.update(pcm, 4);
+        assertEquals(1f, AudioLevelMeter.rmsOf(meter.getLevels()), 0f);
+        assertEquals(1f, AudioLevelMeter.peakOf(meter.getLevels()), 0f);
+    }
+
+    @Test
+    public void resampler_publishesInputLevelsFromItsOwnLoop() {
+        AudioLevelMeter meter = new AudioLevelMeter();
+        PolyphaseResampler resampler = new PolyphaseResampler(48000, 16000);
+        resampler.setLevelMeter(meter);
+        ByteBuffer in = ByteBuffer.allocateDirect(9600).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 4800; i++) {
+            in.putShort((short) Math.round(16384 * Math.sin(2 * Math.PI * i / 96.0)));
+        }
+        in.flip();
+        ByteBuffer out = ByteBuffer.allocateDirect(resampler.maxOutputSamples(4800) * 2).order(ByteOrder.LITTLE_ENDIAN);
+        resampler.process(in, out);
+
+        long levels = meter.getLevels();
+        assertEquals(0.5f / Math.sqrt(2), AudioLevelMeter.rmsOf(levels), 1e-3f);
+        assertEquals(0.5f, AudioLevelMeter.peakOf(levels), 1e-3f);
+    }
+
+    @Test
+    public void voiceActivityDetector_publishesFrameLevels() throws Exception {
+        AudioLevelMeter meter = new AudioLevelMeter();
+        VoiceActivityDetector vad = new VoiceActivityDetector(VoiceActivityDetector.Config.DEFAULT, 16000, chunk -> {
+            chunk.position(chunk.limit());
+        });
+        vad.setLevelMeter(meter);
+        ByteBuffer pcm = ByteBuffer.allocate(640).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 320; i++) {
+            pcm.putShort((short) ((i & 1) == 0 ? 8192 : -8192));
+        }
+        pcm.flip();
+        vad.onPcm(pcm);
+
+        assertEquals(0.25f, AudioLevelMeter.rmsOf(meter.getLevels()), 1e-6f);
+        assertEquals(0.25f, AudioLevelMeter.peakOf(meter.getLevels()), 1e-6f);
+    }
+
+    @Test
+    public void compressedWriter_publishesChunkLevels() throws Exception {
+        AudioLevelMeter meter = new AudioLevelMeter();
+        try (CompressedPcmWriter writer = new CompressedPcmWriter(tempFolder.newFile(), 16000)) {
+            writer.setLevelMeter(meter);
+            ByteBuffer pcm = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+                    .putShort((short) 4096).putShort((short) -4096).putShort((short) 4096).putShort((short) -16384);
+            pcm.flip();
+            writer.onPcm(pcm);
+        }
+        assertEquals(0.5f, AudioLevelMeter.peakOf(meter.getLevels()), 0f);
+        assertEquals((float) Math.sqrt((3 * 4096.0 * 4096 + 16384.0 * 16384) / 4) / 32768,
+                AudioLevelMeter.rmsOf(meter.getLevels()), 1e-6f);
+    }
+
+    @Test
+    public void resetAndEmptyChunks() {
+        AudioLevelMeter meter = new AudioLevelMeter();
+        assertEquals(AudioLevelMeter.SILENCE_DB, AudioLevelMeter.toDb(AudioLevelMeter.rmsOf(meter.getLevels())), 0f);
+        ByteBuffer pcm = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN).putShort((short) 1000);
+        meter.update(pcm, 2);
+        meter.update(pcm, 1);
+        assertEquals(1000 / 32768f, AudioLevelMeter.peakOf(meter.getLevels()), 0f);
+        meter.reset();
+        assertEquals(0f, AudioLevelMeter.peakOf(meter.getLevels()), 0f);
+    }
+}
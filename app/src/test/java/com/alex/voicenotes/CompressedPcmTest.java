@@ -0,0 +1,205 @@
+package com.alex.voicenotes;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedPcmTest {
+    private static final int SAMPLE_RATE = 16000;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip_speechLikeSignal() throws Exception {
+        short[] pcm = speechLike(SAMPLE_RATE * 5, 1);
+        File file = encode(pcm, 1600);
+        assertDecodesTo(pcm, file);
+        assertTrue("expected compression, got " + file.length() + " bytes",
+                file.length() < pcm.length * 2 * 0.75);
+    }
+
+    @Test
+    public void roundTrip_silenceAndExtremes() throws Exception {
+        short[] pcm = new short[CompressedPcmFormat.BLOCK_SAMPLES * 2 + 3];
+        for (int i = CompressedPcmFormat.BLOCK_SAMPLES; i < pcm.length; i++) {
+            pcm[i] = (i & 1) == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        assertDecodesTo(pcm, encode(pcm, 778));
+    }
+
+    @Test
+    public void roundTrip_whiteNoiseFallsBackToVerbatim() throws Exception {
+        short[] pcm = new short[SAMPLE_RATE];
+        Random random = new Random(7);
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) random.nextInt();
+        }
+        File file = encode(pcm, 3200);
+        assertDecodesTo(pcm, file);
+        int blocks = (pcm.length + CompressedPcmFormat.BLOCK_SAMPLES - 1) / CompressedPcmFormat.BLOCK_SAMPLES;
+        assertTrue(file.length() <= CompressedPcmFormat.HEADER_BYTES + pcm.length * 2L + blocks * 3L);
+    }
+
+    @Test
+    public void roundTrip_tinyRecording() throws Exception {
+        short[] pcm = {5, -3, 1000};
+        assertDecodesTo(pcm, encode(pcm, 6));
+        assertDecodesTo(new short[0], encode(new short[0], 2));
+    }
+
+    @Test
+    public void concatenatedStreamsDecodeAsOne() throws Exception {
+        short[] first = speechLike(SAMPLE_RATE, 2);
+        short[] second = speechLike(SAMPLE_RATE / 2, 3);
+        File joined = tempFolder.newFile("joined" + CompressedPcmFormat.EXTENSION);
+        try (FileChannel out = new FileOutputStream(joined).getChannel();
+             FileChannel a = new RandomAccessFile(encode(first, 1600), "r").getChannel();
+             FileChannel b = new RandomAccessFile(encode(second, 1600), "r").getChannel()) {
+            a.transferTo(0, a.size(), out);
+            b.transferTo(0, b.size(), out);
+        }
+        short[] expected = new short[first.length + second.length];
+        System.arraycopy(first, 0, expected, 0, first.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+        assertEquals(expected.length, CompressedPcmReader.countSamples(joined));
+        assertDecodesTo(expected, joined);
+    }
+
+    @Test
+    public void truncatedStreamKeepsCompleteBlocks() throws Exception {
+        short[] pcm = speechLike(CompressedPcmFormat.BLOCK_SAMPLES * 3, 4);
+        File file = encode(pcm, 1600);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(12);
+            raf.writeLong(-1L);
+            raf.setLength(raf.length() - 10);
+        }
+        assertEquals(-1, CompressedPcmReader.countSamples(file));
+        float[] decoded = CompressedPcmReader.readFile(file);
+        assertEquals(CompressedPcmFormat.BLOCK_SAMPLES * 2, decoded.length);
+        for (int i = 0; i < decoded.length; i++) {
+            assertEquals(pcm[i] / 32768.0f, decoded[i], 0f);
+        }
+        assertEquals(decoded.length * 2, CompressedPcmReader.readFilePcm16(file).remaining());
+    }
+
+    @Test
+    public void finalizeStreamDropsPartialBlockAndRestoresHeader() throws Exception {
+        short[] pcm = speechLike(CompressedPcmFormat.BLOCK_SAMPLES * 3, 6);
+        File file = encode(pcm, 3200);
+        long cleanLength = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(12);
+            raf.writeLong(-1L);
+            raf.setLength(raf.length() - 10);
+        }
+
+        assertEquals(CompressedPcmFormat.BLOCK_SAMPLES * 2, CompressedPcmReader.finalizeStream(file));
+        assertEquals(CompressedPcmFormat.BLOCK_SAMPLES * 2, CompressedPcmReader.countSamples(file));
+        assertTrue(file.length() < cleanLength - 10);
+        assertEquals(CompressedPcmFormat.BLOCK_SAMPLES * 2, CompressedPcmReader.finalizeStream(file));
+
+        short[] expected = new short[CompressedPcmFormat.BLOCK_SAMPLES * 2];
+        System.arraycopy(pcm, 0, expected, 0, expected.length);
+        assertDecodesTo(expected, file);
+    }
+
+    @Test
+    public void finalizeStreamKeepsBlocksBeforeZeroFilledTail() throws Exception {
+        short[] pcm = speechLike(SAMPLE_RATE * 10, 8);
+        File file = encode(pcm, 3200);
+        long cleanLength = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(12);
+            raf.writeLong(-1L);
+            raf.setLength(cleanLength + 4096);
+        }
+
+        assertEquals(pcm.length, CompressedPcmReader.finalizeStream(file));
+        assertEquals(cleanLength, file.length());
+        assertEquals(pcm.length, CompressedPcmReader.countSamples(file));
+        assertDecodesTo(pcm, file);
+    }
+
+    @Test
+    public void finalizeStreamStopsAtGarbageBlock() throws Exception {
+        short[] pcm = speechLike(CompressedPcmFormat.BLOCK_SAMPLES * 3, 9);
+        File file = encode(pcm, 3200);
+        long cleanLength = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(12);
+            raf.writeLong(-1L);
+            raf.seek(cleanLength);
+            raf.write(new byte[]{0x13, 0x37, (byte) 0xA1, 0x00, 0x10, 0x7F});
+        }
+
+        assertEquals(pcm.length, CompressedPcmReader.finalizeStream(file));
+        assertEquals(cleanLength, file.length());
+        assertDecodesTo(pcm, file);
+    }
+
+    private File encode(short[] pcm, int chunkBytes) throws Exception {
+        File file = tempFolder.newFile();
+        ByteBuffer all = ByteBuffer.allocate(pcm.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        all.asShortBuffer().put(pcm);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(chunkBytes).order(ByteOrder.LITTLE_ENDIAN);
+        try (CompressedPcmWriter writer = new CompressedPcmWriter(file, SAMPLE_RATE)) {
+            while (all.hasRemaining()) {
+                int n = Math.min(chunkBytes, all.remaining());
+                chunk.clear();
+                all.limit(all.position() + n);
+                chunk.put(all);
+                all.limit(all.capacity());
+                chunk.flip();
+                writer.onPcm(chunk);
+                assertEquals(0, chunk.remaining());
+            }
+        }
+        return file;
+    }
+
+    private static void assertDecodesTo(short[] pcm, File file) throws Exception {
+        float[] expected = new float[pcm.length];
+        for (int i = 0; i < pcm.length; i++) {
+            expected[i] = pcm[i] / 32768.0f;
+        }
+        assertArrayEquals(expected, CompressedPcmReader.readFile(file), 0f);
+
+        ByteBuffer direct = CompressedPcmReader.readFilePcm16(file);
+        assertTrue(direct.isDirect());
+        short[] decoded = new short[direct.remaining() / 2];
+        direct.asShortBuffer().get(decoded);
+        assertArrayEquals(pcm, decoded);
+    }
+
+    // Voiced-speech stand-in: a few harmonics with a slow amplitude envelope, pauses and
+    // low-level noise.
+    private static short[] speechLike(int samples, long seed) {
+        Random random = new Random(seed);
+        short[] pcm = new short[samples];
+        double f0 = 110 + random.nextInt(80);
+        for (int i = 0; i < samples; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double envelope = Math.max(0, Math.sin(2 * Math.PI * 1.5 * t));
+            double voice = Math.sin(2 * Math.PI * f0 * t)
+                    + 0.5 * Math.sin(2 * Math.PI * 2 * f0 * t)
+                    + 0.25 * Math.sin(2 * Math.PI * 3 * f0 * t);
+            double value = 6000 * envelope * voice + random.nextGaussian() * 20;
+            pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,94 @@
+package com.alex.voicenotes;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PcmConverterTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void toFloat_matchesPerSampleConversion() {
+        byte[] pcm = randomPcm(10_001);
+        assertArrayEquals(legacyPcmToFloat(pcm), PcmConverter.toFloat(pcm), 0f);
+    }
+
+    @Test
+    public void toFloat_handlesExtremes() {
+        byte[] pcm = ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort(Short.MIN_VALUE).putShort((short) 0).putShort(Short.MAX_VALUE).array();
+        float[] out = PcmConverter.toFloat(pcm);
+        assertEquals(-1.0f, out[0], 0f);
+        assertEquals(0.0f, out[1], 0f);
+        assertEquals(32767 / 32768.0f, out[2], 0f);
+    }
+
+    @Test
+    public void toFloat_directBufferWritesAtOffsetAndAdvances() {
+        byte[] pcm = randomPcm(3000);
+        ByteBuffer direct = ByteBuffer.allocateDirect(pcm.length);
+        direct.put(pcm).flip();
+        float[] out = new float[3010];
+        int written = PcmConverter.toFloat(direct, out, 10, new short[7]);
+        assertEquals(3000, written);
+        assertEquals(0, direct.remaining());
+        float[] expected = legacyPcmToFloat(pcm);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], out[i + 10], 0f);
+        }
+    }
+
+    @Test
+    public void readFile_matchesInMemoryConversion() throws Exception {
+        byte[] pcm = randomPcm(PcmConverter.CHUNK_SAMPLES * 3 + 123);
+        File file = tempFolder.newFile("note.pcm");
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(pcm);
+            fos.write(0x7f);
+        }
+        assertArrayEquals(legacyPcmToFloat(pcm), PcmConverter.readFile(file), 0f);
+    }
+
+    @Test
+    public void mapFile_endsOnWholeSample() throws Exception {
+        byte[] pcm = randomPcm(1000);
+        File file = tempFolder.newFile("mapped.pcm");
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(pcm);
+            fos.write(0x7f);
+        }
+        ByteBuffer mapped = PcmConverter.mapFile(file);
+        assertEquals(pcm.length, mapped.remaining());
+        float[] out = new float[1000];
+        PcmConverter.toFloat(mapped, out, 0);
+        assertArrayEquals(legacyPcmToFloat(pcm), out, 0f);
+    }
+
+    private static byte[] randomPcm(int samples) {
+        byte[] pcm = new byte[samples * 2];
+        new Random(42).nextBytes(pcm);
+        return pcm;
+    }
+
+    private static float[] legacyPcmToFloat(byte[] pcmData) {
+        int numSamples = pcmData.length / 2;
+        float[] floatData = new float[numSamples];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(pcmData).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < numSamples; i++) {
+            short sample = byteBuffer.getShort();
+            floatData[i] = sample / 32768.0f;
+        }
+        return floatData;
+    }
+}
@@ -0,0 +1,142 @@
+package com.alex.voicenotes;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PolyphaseResamplerTest {
+    private static final int OUTPUT_RATE = 16000;
+
+    @Test
+    public void downsample48k_passesSpeechBandToneCleanly() {
+        assertTonePreserved(48000, 1000);
+        assertTonePreserved(48000, 5000);
+    }
+
+    @Test
+    public void downsample44k1_passesSpeechBandToneCleanly() {
+        assertTonePreserved(44100, 440);
+        assertTonePreserved(44100, 3000);
+    }
+
+    @Test
+    public void downsample_rejectsContentAboveOutputNyquist() {
+        for (int inputRate : new int[]{48000, 44100}) {
+            for (double frequency : new double[]{9000, 12000, 20000}) {
+                short[] out = resample(tone(inputRate, frequency, inputRate, 16000), inputRate, 4800);
+                double level = rmsDb(out, out.length / 4, out.length);
+                // The input tone sits at about -9 dBFS.
+                assertTrue(inputRate + " Hz input, " + frequency + " Hz tone aliased at " + level + " dBFS",
+                        level < -70);
+            }
+        }
+    }
+
+    @Test
+    public void outputLengthTracksRateRatio() {
+        for (int inputRate : new int[]{48000, 44100, 32000, 22050}) {
+            short[] out = resample(new short[inputRate * 3], inputRate, 1234);
+            assertEquals((double) OUTPUT_RATE * 3, out.length, 1.0);
+        }
+    }
+
+    @Test
+    public void chunkingDoesNotChangeOutput() {
+        short[] input = tone(44100, 700, 44100, 12000);
+        short[] whole = resample(input, 44100, input.length * 2);
+        assertArrayEquals(whole, resample(input, 44100, 8820));
+        assertArrayEquals(whole, resample(input, 44100, 2));
+        assertArrayEquals(whole, resample(input, 44100, 1002));
+    }
+
+    @Test
+    public void fullScaleInputClampsInsteadOfWrapping() {
+        short[] input = new short[48000];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (i / 24) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        short[] out = resample(input, 48000, 9600);
+        for (int i = 1; i < out.length; i++) {
+            assertTrue("wrapped at " + i, Math.abs(out[i] - out[i - 1]) < 40000);
+        }
+    }
+
+    private static void assertTonePreserved(int inputRate, double frequency) {
+        double amplitude = 16000;
+        short[] out = resample(tone(inputRate, frequency, inputRate * 2, amplitude), inputRate, inputRate / 10 * 2);
+        // Skip the filter's start-up transient, then fit the tone and measure what is left over.
+        int from = OUTPUT_RATE / 4;
+        double cos = 0;
+        double sin = 0;
+        for (int i = from; i < out.length; i++) {
+            double w = 2 * Math.PI * frequency * i / OUTPUT_RATE;
+            cos += out[i] * Math.cos(w);
+            sin += out[i] * Math.sin(w);
+        }
+        int n = out.length - from;
+        cos *= 2.0 / n;
+        sin *= 2.0 / n;
+        double fitted = Math.hypot(cos, sin);
+        double signal = 0;
+        double noise = 0;
+        for (int i = from; i < out.length; i++) {
+            double w = 2 * Math.PI * frequency * i / OUTPUT_RATE;
+            double expected = cos * Math.cos(w) + sin * Math.sin(w);
+            signal += expected * expected;
+            noise += (out[i] - expected) * (out[i] - expected);
+        }
+        double snrDb = 10 * Math.log10(signal / noise);
+        assertEquals(inputRate + " Hz, " + frequency + " Hz gain", amplitude, fitted, amplitude * 0.01);
+        assertTrue(inputRate + " Hz, " + frequency + " Hz SNR " + snrDb + " dB", snrDb > 60);
+    }
+
+    private static short[] tone(int rate, double frequency, int samples, double amplitude) {
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / rate));
+        }
+        return pcm;
+    }
+
+    private static short[] resample(short[] input, int inputRate, int chunkBytes) {
+        PolyphaseResampler resampler = new PolyphaseResampler(inputRate, OUTPUT_RATE);
+        ByteBuffer all = ByteBuffer.allocate(input.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        all.asShortBuffer().put(input);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(chunkBytes).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer out = ByteBuffer.allocateDirect(resampler.maxOutputSamples(chunkBytes / 2) * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        short[] result = new short[resampler.maxOutputSamples(input.length)];
+        int size = 0;
+        while (all.hasRemaining()) {
+            int n = Math.min(chunkBytes, all.remaining());
+            chunk.clear();
+            all.limit(all.position() + n);
+            chunk.put(all);
+            all.limit(all.capacity());
+            chunk.flip();
+            out.clear();
+            int written = resampler.process(chunk, out);
+            assertEquals(0, chunk.remaining());
+            assertEquals(written * 2, out.position());
+            out.flip();
+            out.asShortBuffer().get(result, size, written);
+            size += written;
+        }
+        short[] trimmed = new short[size];
+        System.arraycopy(result, 0, trimmed, 0, size);
+        return trimmed;
+    }
+
+    private static double rmsDb(short[] pcm, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += (double) pcm[i] * pcm[i];
+        }
+        return 20 * Math.log10(Math.sqrt(sum / (to - from)) / 32768.0 + 1e-12);
+    }
+}
@@ -0,0 +1,161 @@
+package com.alex.voicenotes;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VoiceActivityDetectorTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_SAMPLES = SAMPLE_RATE / 50;
+
+    @Test
+    public void keepsSpeechRegionsWithPreRollAndHangover() throws Exception {
+        VoiceActivityDetector.Config config = new VoiceActivityDetector.Config(-55f, 10f, 0.3f, 100, 60);
+        short[] pcm = concat(
+                silence(SAMPLE_RATE),
+                tone(SAMPLE_RATE / 2, 200, -20),
+                silence(SAMPLE_RATE),
+                tone(SAMPLE_RATE / 2, 300, -20),
+                silence(SAMPLE_RATE));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VoiceActivityDetector vad = run(config, pcm, out, 1000);
+
+        // Per region: 3 frames of pre-roll, 25 frames of tone and 5 frames of hangover.
+        int regionSamples = (3 + 25 + 5) * FRAME_SAMPLES;
+        assertEquals(2, vad.getSpeechRegionCount());
+        assertEquals(4.0, vad.getInputSeconds(), 1e-9);
+        assertEquals(2.0 * regionSamples / SAMPLE_RATE, vad.getOutputSeconds(), 1e-9);
+        assertEquals(4.0 - vad.getOutputSeconds(), vad.getTrimmedSeconds(), 1e-9);
+
+        short[] kept = toShorts(out.toByteArray());
+        assertEquals(2 * regionSamples, kept.length);
+        for (int region = 0; region < 2; region++) {
+            int start = region * regionSamples;
+            int toneStart = region == 0 ? SAMPLE_RATE : SAMPLE_RATE * 5 / 2;
+            for (int i = 0; i < 3 * FRAME_SAMPLES; i++) {
+                assertEquals(0, kept[start + i]);
+            }
+            for (int i = 0; i < 25 * FRAME_SAMPLES; i++) {
+                assertEquals(pcm[toneStart + i], kept[start + 3 * FRAME_SAMPLES + i]);
+            }
+        }
+    }
+
+    @Test
+    public void learnsSteadyBackgroundNoiseAndTrimsIt() throws Exception {
+        short[] pcm = concat(
+                noise(SAMPLE_RATE * 20, -40, 1),
+                tone(SAMPLE_RATE, 200, -10));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VoiceActivityDetector vad = run(VoiceActivityDetector.Config.DEFAULT, pcm, out, 1600);
+
+        // The noise starts above the initial threshold and, being broadband, passes the unvoiced rule
+        // until the floor is within a few dB of it, which takes several seconds at the slow rate used
+        // during speech. After that only the tone gets through.
+        assertTrue("kept " + vad.getOutputSeconds() + " s", vad.getOutputSeconds() < 10);
+        short[] kept = toShorts(out.toByteArray());
+        short[] keptTail = Arrays.copyOfRange(kept, kept.length - SAMPLE_RATE, kept.length);
+        assertArrayEquals(Arrays.copyOfRange(pcm, pcm.length - SAMPLE_RATE, pcm.length), keptTail);
+        assertEquals(pcm.length * 2 - out.size(), Math.round(vad.getTrimmedSeconds() * SAMPLE_RATE * 2));
+    }
+
+    @Test
+    public void keepsQuietHissButNotQuietHumAboveNoiseFloor() throws Exception {
+        VoiceActivityDetector.Config config = new VoiceActivityDetector.Config(-45f, 10f, 0.3f, 0, 0);
+        short[] background = noise(SAMPLE_RATE * 3, -50, 2);
+
+        VoiceActivityDetector hiss = run(config, concat(background, noise(SAMPLE_RATE / 2, -43, 3)),
+                new ByteArrayOutputStream(), 3200);
+        assertEquals(1, hiss.getSpeechRegionCount());
+        assertEquals(0.5, hiss.getOutputSeconds(), 0.1);
+
+        VoiceActivityDetector hum = run(config, concat(background, tone(SAMPLE_RATE / 2, 200, -43)),
+                new ByteArrayOutputStream(), 3200);
+        assertEquals(0, hum.getSpeechRegionCount());
+        assertEquals(0.0, hum.getOutputSeconds(), 0.0);
+    }
+
+    @Test
+    public void finishFlushesPartialFrameOnlyInSpeech() throws Exception {
+        VoiceActivityDetector.Config config = new VoiceActivityDetector.Config(-55f, 10f, 0.3f, 100, 0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VoiceActivityDetector vad = run(config, tone(FRAME_SAMPLES * 2 + 100, 200, -20), out, 640);
+        assertEquals((FRAME_SAMPLES * 2 + 100) * 2, out.size());
+
+        out.reset();
+        vad = run(config, silence(FRAME_SAMPLES * 2 + 100), out, 640);
+        assertEquals(0, out.size());
+        assertEquals((FRAME_SAMPLES * 2 + 100) / (double) SAMPLE_RATE, vad.getTrimmedSeconds(), 1e-9);
+    }
+
+    // Feeds pcm in chunkBytes pieces, as the recorder's consumer thread does, and collects what the
+    // detector passes on.
+    private static VoiceActivityDetector run(VoiceActivityDetector.Config config, short[] pcm,
+                                             ByteArrayOutputStream out, int chunkBytes) throws Exception {
+        VoiceActivityDetector vad = new VoiceActivityDetector(config, SAMPLE_RATE, chunk -> {
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.get(bytes);
+            out.write(bytes, 0, bytes.length);
+        });
+        ByteBuffer all = ByteBuffer.allocate(pcm.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        all.asShortBuffer().put(pcm);
+        for (int offset = 0; offset < all.capacity(); offset += chunkBytes) {
+            all.limit(Math.min(all.capacity(), offset + chunkBytes)).position(offset);
+            vad.onPcm(all.slice().order(ByteOrder.LITTLE_ENDIAN));
+        }
+        vad.finish();
+        return vad;
+    }
+
+    private static short[] silence(int samples) {
+        return new short[samples];
+    }
+
+    private static short[] tone(int samples, double frequency, double rmsDb) {
+        double amplitude = 32768 * Math.pow(10, rmsDb / 20) * Math.sqrt(2);
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        return pcm;
+    }
+
+    // White noise, whose zero-crossing rate is around 0.5.
+    private static short[] noise(int samples, double rmsDb, long seed) {
+        double sigma = 32768 * Math.pow(10, rmsDb / 20);
+        Random random = new Random(seed);
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) Math.round(sigma * random.nextGaussian());
+        }
+        return pcm;
+    }
+
+    private static short[] concat(short[]... parts) {
+        int length = 0;
+        for (short[] part : parts) {
+            length += part.length;
+        }
+        short[] pcm = new short[length];
+        int offset = 0;
+        for (short[] part : parts) {
+            System.arraycopy(part, 0, pcm, offset, part.length);
+            offset += part.length;
+        }
+        return pcm;
+    }
+
+    private static short[] toShorts(byte[] bytes) {
+        short[] pcm = new short[bytes.length / 2];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(pcm);
+        return pcm;
+    }
+}
@@ -6,33 +6,260 @@ import android.util.Log
 import kotlinx.coroutines.*
 import java.io.File
 import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.coroutines.ContinuationInterceptor
 
 private const val LOG_TAG = "LibWhisper"
 
 class WhisperContext private constructor(private var ptr: Long) {
     // Meet Whisper C++ constraint: Don't access from more than one thread at a time.
-    private val scope: CoroutineScope = CoroutineScope(
-        Executors.newSingleThreadExecutor().asCoroutineDispatcher()
-    )
+    private val dispatcher = Executors.newSingleThreadExecutor().asCoroutineDispatcher()
+    private val scope: CoroutineScope = CoroutineScope(dispatcher)
 
-    suspend fun transcribeData(data: FloatArray, printTimestamp: Boolean = true): String = withContext(scope.coroutineContext) {
+    // The transcribe calls switch only the dispatcher and keep the caller's Job, so cancelling the
+    // caller reaches them.
+    suspend fun transcribeData(
+        data: FloatArray,
+        printTimestamp: Boolean = true,
+        listener: WhisperProgressListener? = null,
+        params: WhisperDecodeParams = WhisperDecodeParams.DEFAULT
+    ): String = transcribeAudio(data, printTimestamp, listener, params)
+
+    // Like transcribeData, for 16 kHz 16-bit little-endian PCM between position and limit of a direct
+    // buffer, such as a memory-mapped recording. Native code converts it to floats in its own memory,
+    // so a long recording costs no Java heap.
+    suspend fun transcribePcm16(
+        pcm: ByteBuffer,
+        listener: WhisperProgressListener? = null,
+        params: WhisperDecodeParams = WhisperDecodeParams.DEFAULT
+    ): String = transcribeAudio(pcm16View(pcm), false, listener, params)
+
+    // audio is a FloatArray or a pcm16View; the JNI layer accepts either.
+    private suspend fun transcribeAudio(
+        audio: Any,
+        printTimestamp: Boolean,
+        listener: WhisperProgressListener?,
+        params: WhisperDecodeParams
+    ): String = withContext(dispatcher) {
         require(ptr != 0L)
-        val numThreads = WhisperCpuConfig.preferredThreadCount
+        val numThreads = params.resolveThreads()
         Log.d(LOG_TAG, "Selecting $numThreads threads")
-        WhisperLib.fullTranscribe(ptr, numThreads, data)
-        val textCount = WhisperLib.getTextSegmentCount(ptr)
+        val status = abortOnCancel { flag -> WhisperLib.fullTranscribe(ptr, numThreads, audio, params, flag, listener) }
+        ensureActive()
+        check(status == 0) { "whisper_full failed with code $status" }
+        listener?.onProgress(100)
+        val result = checkNotNull(WhisperLib.getResult(ptr, false)) { "Couldn't read the transcription" }
+        if (!printTimestamp) {
+            return@withContext result.fullText
+        }
         return@withContext buildString {
-            for (i in 0 until textCount) {
-                if (printTimestamp) {
-                    val textTimestamp = "[${toTimestamp(WhisperLib.getTextSegmentT0(ptr, i))} --> ${toTimestamp(WhisperLib.getTextSegmentT1(ptr, i))}]"
-                    val textSegment = WhisperLib.getTextSegment(ptr, i)
-                    append("$textTimestamp: $textSegment\n")
-                } else {
-                    append(WhisperLib.getTextSegment(ptr, i))
+            for (i in 0 until result.size) {
+                append("[${toTimestamp(result.startMs[i] / 10)} --> ${toTimestamp(result.endMs[i] / 10)}]: ${result.getText(i)}\n")
+            }
+        }
+    }
+
+    // Same decode as transcribeData, but keeps each segment's time range (relative to the start of
+    // data) and mean token probability, so callers can decide which parts of a sliding window are
+    // stable or attach timestamps to a note.
+    suspend fun transcribeSegments(
+        data: FloatArray,
+        params: WhisperDecodeParams = WhisperDecodeParams.DEFAULT,
+        listener: WhisperProgressListener? = null
+    ): List<WhisperSegment> = transcribeAudioSegments(data, params, listener)
+
+    // transcribeSegments for PCM16 in a direct buffer, as taken by transcribePcm16.
+    suspend fun transcribePcm16Segments(
+        pcm: ByteBuffer,
+        params: WhisperDecodeParams = WhisperDecodeParams.DEFAULT,
+        listener: WhisperProgressListener? = null
+    ): List<WhisperSegment> = transcribeAudioSegments(pcm16View(pcm), params, listener)
+
+    private suspend fun transcribeAudioSegments(
+        audio: Any,
+        params: WhisperDecodeParams,
+        listener: WhisperProgressListener?
+    ): List<WhisperSegment> = withContext(dispatcher) {
+        require(ptr != 0L)
+        val status = abortOnCancel { flag ->
+            WhisperLib.fullTranscribe(ptr, params.resolveThreads(), audio, params, flag, listener)
+        }
+        ensureActive()
+        check(status == 0) { "whisper_full failed with code $status" }
+        listener?.onProgress(100)
+        return@withContext checkNotNull(WhisperLib.getResult(ptr, true)) { "Couldn't read the transcription" }
+            .toSegments()
+    }
+
+    // Decodes each chunk on its own whisper_state, `parallelism` chunks at a time. The states share
+    // this context's weights, so each extra worker only costs its decoder buffers. Segment times are
+    // relative to the start of their chunk. Progress is reported across all chunks, weighted by length.
+    suspend fun transcribeChunks(
+        chunks: List<FloatArray>,
+        parallelism: Int,
+        listener: WhisperProgressListener? = null,
+        params: WhisperDecodeParams = WhisperDecodeParams.DEFAULT
+    ): List<List<WhisperSegment>> = transcribeAudioChunks(chunks, parallelism, listener, params)
+
+    // transcribeChunks for PCM16 chunks given as direct buffers, typically slices of one mapping.
+    suspend fun transcribePcm16Chunks(
+        chunks: List<ByteBuffer>,
+        parallelism: Int,
+        listener: WhisperProgressListener? = null,
+        params: WhisperDecodeParams = WhisperDecodeParams.DEFAULT
+    ): List<List<WhisperSegment>> = transcribeAudioChunks(chunks.map(::pcm16View), parallelism, listener, params)
+
+    private suspend fun transcribeAudioChunks(
+        chunks: List<Any>,
+        parallelism: Int,
+        listener: WhisperProgressListener?,
+        params: WhisperDecodeParams
+    ): List<List<WhisperSegment>> =
+        withContext(dispatcher) {
+            require(ptr != 0L)
+            val workers = parallelism.coerceIn(1, chunks.size.coerceAtLeast(1))
+            val threadsPerWorker = (params.resolveThreads() / workers).coerceAtLeast(1)
+            Log.d(LOG_TAG, "Decoding ${chunks.size} chunks on $workers states with $threadsPerWorker threads each")
+            val results = arrayOfNulls<List<WhisperSegment>>(chunks.size)
+            val next = AtomicInteger()
+            val progress = listener?.let { ChunkProgress(LongArray(chunks.size) { i -> sampleCount(chunks[i]) }, it) }
+            val pool = Executors.newFixedThreadPool(workers).asCoroutineDispatcher()
+            // Hold this context's thread until every worker has freed its state. Suspending here would
+            // let release() run on it while the workers still decode on ptr; runBlocking keeps the
+            // caller's Job, so cancelling still raises the abort flag.
+            try {
+                runBlocking(coroutineContext.minusKey(ContinuationInterceptor)) {
+                    abortOnCancel { flag ->
+                        List(workers) {
+                            launch(pool) {
+                                val state = WhisperLib.initState(ptr)
+                                check(state != 0L) { "Couldn't allocate whisper state" }
+                                try {
+                                    while (true) {
+                                        ensureActive()
+                                        val index = next.getAndIncrement()
+                                        if (index >= chunks.size) break
+                                        val result = WhisperLib.fullTranscribeWithState(
+                                            ptr, state, threadsPerWorker, chunks[index], params, flag, progress?.listenerFor(index)
+                                        )
+                                        ensureActive()
+                                        check(result == 0) { "Chunk $index failed with code $result" }
+                                        results[index] = checkNotNull(WhisperLib.getStateResult(ptr, state, true)) {
+                                            "Couldn't read chunk $index"
+                                        }.toSegments()
+                                        progress?.update(index, 100)
+                                    }
+                                } finally {
+                                    WhisperLib.freeState(state)
+                                }
+                            }
+                        }.joinAll()
+                    }
+                }
+            } finally {
+                pool.close()
+            }
+            return@withContext results.map { it!! }
+        }
+
+    // Runs a blocking native call with an abort flag that is raised as soon as the calling coroutine
+    // is cancelled, so whisper stops at its next check instead of decoding to the end. A watcher child
+    // started undispatched on the Unconfined dispatcher sets the flag from the cancelling thread while
+    // this thread is still inside native code.
+    private suspend fun <T> abortOnCancel(block: suspend CoroutineScope.(ByteBuffer) -> T): T = coroutineScope {
+        val flag = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder())
+        val scopeJob = coroutineContext.job
+        val watcher = launch(Dispatchers.Unconfined, start = CoroutineStart.UNDISPATCHED) {
+            try {
+                awaitCancellation()
+            } finally {
+                if (scopeJob.isCancelled) {
+                    flag.putInt(0, 1)
                 }
             }
         }
+        try {
+            block(flag)
+        } finally {
+            watcher.cancel()
+            if (flag.getInt(0) != 0) {
+                Log.d(LOG_TAG, "Native transcription aborted")
+            }
+        }
+    }
+
+    // Future-based entry points for Java callers. The work is launched straight onto this context's
+    // own thread, so no extra thread waits on it. Cancelling the future cancels the coroutine: work
+    // that has not started never runs, and a running decode is aborted inside whisper_full.
+    @JvmOverloads
+    fun transcribeAsync(
+        data: FloatArray,
+        listener: WhisperProgressListener? = null,
+        params: WhisperDecodeParams = WhisperDecodeParams.DEFAULT
+    ): CompletableFuture<String> =
+        launchFuture { transcribeData(data, false, listener, params) }
+
+    @JvmOverloads
+    fun transcribePcm16Async(
+        pcm: ByteBuffer,
+        listener: WhisperProgressListener? = null,
+        params: WhisperDecodeParams = WhisperDecodeParams.DEFAULT
+    ): CompletableFuture<String> =
+        launchFuture { transcribePcm16(pcm, listener, params) }
+
+    @JvmOverloads
+    fun transcribeSegmentsAsync(
+        data: FloatArray,
+        params: WhisperDecodeParams = WhisperDecodeParams.DEFAULT,
+        listener: WhisperProgressListener? = null
+    ): CompletableFuture<List<WhisperSegment>> =
+        launchFuture { transcribeSegments(data, params, listener) }
+
+    @JvmOverloads
+    fun transcribePcm16SegmentsAsync(
+        pcm: ByteBuffer,
+        params: WhisperDecodeParams = WhisperDecodeParams.DEFAULT,
+        listener: WhisperProgressListener? = null
+    ): CompletableFuture<List<WhisperSegment>> =
+        launchFuture { transcribePcm16Segments(pcm, params, listener) }
+
+    @JvmOverloads
+    fun transcribeChunksAsync(
+        chunks: List<FloatArray>,
+        parallelism: Int,
+        listener: WhisperProgressListener? = null,
+        params: WhisperDecodeParams = WhisperDecodeParams.DEFAULT
+    ): CompletableFuture<List<List<WhisperSegment>>> =
+        launchFuture { transcribeChunks(chunks, parallelism, listener, params) }
+
+    @JvmOverloads
+    fun transcribePcm16ChunksAsync(
+        chunks: List<ByteBuffer>,
+        parallelism: Int,
+        listener: WhisperProgressListener? = null,
+        params: WhisperDecodeParams = WhisperDecodeParams.DEFAULT
+    ): CompletableFuture<List<List<WhisperSegment>>> =
+        launchFuture { transcribePcm16Chunks(chunks, parallelism, listener, params) }
+
+    private fun <T> launchFuture(block: suspend () -> T): CompletableFuture<T> {
+        val future = CompletableFuture<T>()
+        val job = scope.launch {
+            try {
+                future.complete(block())
+            } catch (e: Throwable) {
+                future.completeExceptionally(e)
+            }
+        }
+        future.whenComplete { _, _ ->
+            if (future.isCancelled) {
+                job.cancel()
+            }
+        }
+        return future
     }
 
     suspend fun benchMemory(nthreads: Int): String = withContext(scope.coroutineContext) {
@@ -43,6 +270,9 @@ class WhisperContext private constructor(private var ptr: Long) {
         return@withContext WhisperLib.benchGgmlMulMat(nthreads)
     }
 
+    fun benchGgmlMulMatAsync(nthreads: Int): CompletableFuture<String> =
+        launchFuture { benchGgmlMulMat(nthreads) }
+
     suspend fun release() = withContext(scope.coroutineContext) {
         if (ptr != 0L) {
             WhisperLib.freeContext(ptr)
@@ -65,6 +295,16 @@ class WhisperContext private constructor(private var ptr: Long) {
             return WhisperContext(ptr)
         }
 
+        // Same model as createContextFromFile, read through an mmap of the file rather than a stream,
+        // so reloads are served from pages the kernel already has cached.
+        fun createContextFromMappedFile(filePath: String): WhisperContext {
+            val ptr = WhisperLib.initContextMapped(filePath)
+            if (ptr == 0L) {
+                throw java.lang.RuntimeException("Couldn't create context from mapping of $filePath")
+            }
+            return WhisperContext(ptr)
+        }
+
         fun createContextFromInputStream(stream: InputStream): WhisperContext {
             val ptr = WhisperLib.initContextFromInputStream(stream)
 
@@ -86,6 +326,113 @@ class WhisperContext private constructor(private var ptr: Long) {
         fun getSystemInfo(): String {
             return WhisperLib.getSystemInfo()
         }
+
+        // For load benchmarks: evicts the file's clean pages from the page cache so the next load is
+        // cold. Returns false if the file could not be opened or the hint was rejected.
+        fun dropFileCache(filePath: String): Boolean {
+            return WhisperLib.dropFileCache(filePath)
+        }
+    }
+}
+
+// probability is the mean probability of the segment's tokens, or NaN when it was not computed.
+data class WhisperSegment @JvmOverloads constructor(
+    val startMs: Long,
+    val endMs: Long,
+    val text: String,
+    val probability: Float = Float.NaN
+)
+
+// Everything one decode produced, filled by a single JNI call. Segment i runs from startMs[i] to
+// endMs[i] and its text is the UTF-8 bytes of text from textOffsets[i] to textOffsets[i + 1].
+// probabilities holds each segment's mean token probability when it was asked for, else null.
+class WhisperResult(
+    @JvmField val startMs: LongArray,
+    @JvmField val endMs: LongArray,
+    @JvmField val text: ByteArray,
+    @JvmField val textOffsets: IntArray,
+    @JvmField val probabilities: FloatArray?
+) {
+    val size: Int
+        get() = startMs.size
+
+    // All segments' text, exactly as whisper concatenates it.
+    val fullText: String
+        get() = String(text, Charsets.UTF_8)
+
+    fun getText(index: Int): String =
+        String(text, textOffsets[index], textOffsets[index + 1] - textOffsets[index], Charsets.UTF_8)
+
+    fun toSegments(): List<WhisperSegment> = List(size) { i ->
+        WhisperSegment(startMs[i], endMs[i], getText(i), probabilities?.get(i) ?: Float.NaN)
+    }
+}
+
+// Decoding options for whisper_full, read field by field by the JNI layer. A beam size above one
+// selects beam search, bestOf is the number of greedy candidates tried when the temperature fallback
+// kicks in, 0 max tokens means no limit, a null language is detected per call, and 0 threads leaves
+// the choice to WhisperCpuConfig. The defaults match what the JNI layer always used before.
+class WhisperDecodeParams @JvmOverloads constructor(
+    @JvmField val beamSize: Int = 1,
+    @JvmField val bestOf: Int = 5,
+    @JvmField val temperatureFallback: Boolean = true,
+    @JvmField val maxTokensPerSegment: Int = 0,
+    @JvmField val language: String? = "en",
+    @JvmField val threads: Int = 0
+) {
+    fun resolveThreads(): Int = if (threads > 0) threads else WhisperCpuConfig.preferredThreadCount
+
+    override fun toString(): String =
+        "beam=$beamSize bestOf=$bestOf fallback=$temperatureFallback maxTokens=$maxTokensPerSegment " +
+            "language=${language ?: "auto"} threads=${resolveThreads()}"
+
+    companion object {
+        @JvmField
+        val DEFAULT = WhisperDecodeParams()
+    }
+}
+
+// Receives decoding progress in percent on the thread running the decode. whisper reports once per
+// 30 s window and the JNI layer drops updates closer than 250 ms apart, so calls are infrequent, but
+// they still hold up decoding and should return quickly.
+fun interface WhisperProgressListener {
+    fun onProgress(progress: Int)
+}
+
+// The JNI layer reads a direct buffer from address 0 to its capacity, so hand it a slice that starts
+// at the caller's position and ends at its limit.
+private fun pcm16View(pcm: ByteBuffer): ByteBuffer {
+    require(pcm.isDirect) { "PCM16 audio must be in a direct buffer" }
+    return pcm.slice()
+}
+
+private fun sampleCount(audio: Any): Long = when (audio) {
+    is FloatArray -> audio.size.toLong()
+    is ByteBuffer -> audio.capacity() / 2L
+    else -> throw IllegalArgumentException("Unsupported audio ${audio.javaClass}")
+}
+
+// Folds the progress of chunks decoding on different states into one percentage weighted by chunk
+// length, reporting only when it moves forward.
+private class ChunkProgress(private val weights: LongArray, private val listener: WhisperProgressListener) {
+    private val total = weights.sum().coerceAtLeast(1)
+    private val done = IntArray(weights.size)
+    private var reported = -1
+
+    fun listenerFor(index: Int) = WhisperProgressListener { update(index, it) }
+
+    @Synchronized
+    fun update(index: Int, progress: Int) {
+        done[index] = progress
+        var sum = 0L
+        for (i in done.indices) {
+            sum += weights[i] * done[i]
+        }
+        val overall = (sum / total).toInt()
+        if (overall > reported) {
+            reported = overall
+            listener.onProgress(overall)
+        }
     }
 }
 
@@ -133,12 +480,21 @@ private class WhisperLib {
         external fun initContextFromInputStream(inputStream: InputStream): Long
         external fun initContextFromAsset(assetManager: AssetManager, assetPath: String): Long
         external fun initContext(modelPath: String): Long
+        external fun initContextMapped(modelPath: String): Long
+        external fun dropFileCache(path: String): Boolean
         external fun freeContext(contextPtr: Long)
-        external fun fullTranscribe(contextPtr: Long, numThreads: Int, audioData: FloatArray)
-        external fun getTextSegmentCount(contextPtr: Long): Int
-        external fun getTextSegment(contextPtr: Long, index: Int): String
-        external fun getTextSegmentT0(contextPtr: Long, index: Int): Long
-        external fun getTextSegmentT1(contextPtr: Long, index: Int): Long
+        external fun fullTranscribe(
+            contextPtr: Long, numThreads: Int, audio: Any, params: WhisperDecodeParams,
+            abortFlag: ByteBuffer?, progressListener: WhisperProgressListener?
+        ): Int
+        external fun getResult(contextPtr: Long, withProbabilities: Boolean): WhisperResult?
+        external fun initState(contextPtr: Long): Long
+        external fun freeState(statePtr: Long)
+        external fun fullTranscribeWithState(
+            contextPtr: Long, statePtr: Long, numThreads: Int, audio: Any, params: WhisperDecodeParams,
+            abortFlag: ByteBuffer?, progressListener: WhisperProgressListener?
+        ): Int
+        external fun getStateResult(contextPtr: Long, statePtr: Long, withProbabilities: Boolean): WhisperResult?
         external fun getSystemInfo(): String
         external fun benchMemcpy(nthread: Int): String
         external fun benchGgmlMulMat(nthread: Int): String
@@ -5,7 +5,15 @@ import java.io.BufferedReader
 import java.io.FileReader
 
 object WhisperCpuConfig {
+    // Set by the app from a measured calibration for the loaded model; 0 means not calibrated.
+    @Volatile
+    var calibratedThreadCount: Int = 0
+
     val preferredThreadCount: Int
+        get() = calibratedThreadCount.takeIf { it > 0 } ?: heuristicThreadCount
+
+    // Guess from the CPU topology, used until a calibration exists.
+    val heuristicThreadCount: Int
         // Always use at least 2 threads:
         get() = CpuInfo.getHighPerfCpuCount().coerceAtLeast(2)
 }
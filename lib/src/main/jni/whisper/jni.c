@@ -2,9 +2,14 @@
 #include <android/asset_manager.h>
 #include <android/asset_manager_jni.h>
 #include <android/log.h>
+#include <fcntl.h>
 #include <stdlib.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
 #include <sys/sysinfo.h>
 #include <string.h>
+#include <time.h>
+#include <unistd.h>
 #include "whisper.h"
 #include "ggml.h"
 
@@ -22,77 +27,85 @@ static inline int max(int a, int b) {
     return (a > b) ? a : b;
 }
 
+// Whisper's loader issues many small reads (headers, tensor names) and a few large ones (tensor
+// data). All of them go through one Java byte[] kept as a global reference for the whole load and
+// are copied out with GetByteArrayRegion, so no array is allocated or pinned per read.
+#define STREAM_CHUNK_BYTES (256 * 1024)
+
 struct input_stream_context {
-    size_t offset;
-    JNIEnv * env;
-    jobject thiz;
+    JNIEnv *env;
     jobject input_stream;
-
-    jmethodID mid_available;
     jmethodID mid_read;
+    jbyteArray buffer;
+    bool eof;
 };
 
-size_t inputStreamRead(void * ctx, void * output, size_t read_size) {
-    struct input_stream_context* is = (struct input_stream_context*)ctx;
-
-    jint avail_size = (*is->env)->CallIntMethod(is->env, is->input_stream, is->mid_available);
-    jint size_to_copy = read_size < avail_size ? (jint)read_size : avail_size;
-
-    jbyteArray byte_array = (*is->env)->NewByteArray(is->env, size_to_copy);
-
-    jint n_read = (*is->env)->CallIntMethod(is->env, is->input_stream, is->mid_read, byte_array, 0, size_to_copy);
-
-    if (size_to_copy != read_size || size_to_copy != n_read) {
-        LOGI("Insufficient Read: Req=%zu, ToCopy=%d, Available=%d", read_size, size_to_copy, n_read);
+static size_t input_stream_read(void *ctx, void *output, size_t read_size) {
+    struct input_stream_context *is = (struct input_stream_context *) ctx;
+    JNIEnv *env = is->env;
+    size_t copied = 0;
+    while (copied < read_size && !is->eof) {
+        size_t wanted = read_size - copied;
+        jint request = wanted < STREAM_CHUNK_BYTES ? (jint) wanted : STREAM_CHUNK_BYTES;
+        jint n_read = (*env)->CallIntMethod(env, is->input_stream, is->mid_read, is->buffer, 0, request);
+        if ((*env)->ExceptionCheck(env)) {
+            (*env)->ExceptionDescribe(env);
+            (*env)->ExceptionClear(env);
+            LOGW("Model stream read failed after %zu bytes of a %zu byte read", copied, read_size);
+            is->eof = true;
+            break;
+        }
+        if (n_read < 0) {
+            is->eof = true;
+            break;
+        }
+        (*env)->GetByteArrayRegion(env, is->buffer, 0, n_read, (jbyte *) output + copied);
+        copied += (size_t) n_read;
     }
-
-    jbyte* byte_array_elements = (*is->env)->GetByteArrayElements(is->env, byte_array, NULL);
-    memcpy(output, byte_array_elements, size_to_copy);
-    (*is->env)->ReleaseByteArrayElements(is->env, byte_array, byte_array_elements, JNI_ABORT);
-
-    (*is->env)->DeleteLocalRef(is->env, byte_array);
-
-    is->offset += size_to_copy;
-
-    return size_to_copy;
+    return copied;
 }
-bool inputStreamEof(void * ctx) {
-    struct input_stream_context* is = (struct input_stream_context*)ctx;
 
-    jint result = (*is->env)->CallIntMethod(is->env, is->input_stream, is->mid_available);
-    return result <= 0;
+// Like feof: true once a read has run into the end of the stream.
+static bool input_stream_is_eof(void *ctx) {
+    return ((struct input_stream_context *) ctx)->eof;
 }
-void inputStreamClose(void * ctx) {
 
+static void input_stream_close(void *ctx) {
+    struct input_stream_context *is = (struct input_stream_context *) ctx;
+    (*is->env)->DeleteGlobalRef(is->env, is->buffer);
+    is->buffer = NULL;
 }
 
 JNIEXPORT jlong JNICALL
-Java_com_whispercppdemo_whisper_WhisperLib_00024Companion_initContextFromInputStream(
+Java_com_whispercpp_whisper_WhisperLib_00024Companion_initContextFromInputStream(
         JNIEnv *env, jobject thiz, jobject input_stream) {
     UNUSED(thiz);
 
-    struct whisper_context *context = NULL;
-    struct whisper_model_loader loader = {};
-    struct input_stream_context inp_ctx = {};
-
-    inp_ctx.offset = 0;
-    inp_ctx.env = env;
-    inp_ctx.thiz = thiz;
-    inp_ctx.input_stream = input_stream;
-
+    struct input_stream_context is = {};
+    is.env = env;
+    is.input_stream = input_stream;
     jclass cls = (*env)->GetObjectClass(env, input_stream);
-    inp_ctx.mid_available = (*env)->GetMethodID(env, cls, "available", "()I");
-    inp_ctx.mid_read = (*env)->GetMethodID(env, cls, "read", "([BII)I");
-
-    loader.context = &inp_ctx;
-    loader.read = inputStreamRead;
-    loader.eof = inputStreamEof;
-    loader.close = inputStreamClose;
+    is.mid_read = (*env)->GetMethodID(env, cls, "read", "([BII)I");
+    (*env)->DeleteLocalRef(env, cls);
 
-    loader.eof(loader.context);
+    jbyteArray local_buffer = (*env)->NewByteArray(env, STREAM_CHUNK_BYTES);
+    if (!local_buffer) {
+        return 0;
+    }
+    is.buffer = (*env)->NewGlobalRef(env, local_buffer);
+    (*env)->DeleteLocalRef(env, local_buffer);
+    if (!is.buffer) {
+        return 0;
+    }
 
-    context = whisper_init(&loader);
-    return (jlong) context;
+    whisper_model_loader loader = {
+            .context = &is,
+            .read = &input_stream_read,
+            .eof = &input_stream_is_eof,
+            .close = &input_stream_close
+    };
+    // whisper calls close once it has read the model, whether or not loading succeeded.
+    return (jlong) whisper_init_with_params(&loader, whisper_context_default_params());
 }
 
 static size_t asset_read(void *ctx, void *output, size_t read_size) {
@@ -152,6 +165,106 @@ Java_com_whispercpp_whisper_WhisperLib_00024Companion_initContext(
     return (jlong) context;
 }
 
+// Serves the model loader from a read-only mapping of the model file. Tensor data still ends up in
+// ggml's own buffers, but it is copied straight out of the page cache instead of through a stream,
+// and the file pages stay cached and shared for the next load or another process.
+struct mapped_model {
+    const uint8_t *data;
+    size_t size;
+    size_t offset;
+};
+
+static size_t mapped_read(void *ctx, void *output, size_t read_size) {
+    struct mapped_model *model = (struct mapped_model *) ctx;
+    size_t remaining = model->size - model->offset;
+    size_t n = read_size < remaining ? read_size : remaining;
+    memcpy(output, model->data + model->offset, n);
+    model->offset += n;
+    return n;
+}
+
+static bool mapped_is_eof(void *ctx) {
+    struct mapped_model *model = (struct mapped_model *) ctx;
+    return model->offset >= model->size;
+}
+
+static void mapped_close(void *ctx) {
+    struct mapped_model *model = (struct mapped_model *) ctx;
+    munmap((void *) model->data, model->size);
+    free(model);
+}
+
+static struct whisper_context *whisper_init_from_mapped_file(const char *model_path) {
+    int fd = open(model_path, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) {
+        LOGW("Failed to open '%s'\n", model_path);
+        return NULL;
+    }
+    struct stat st;
+    if (fstat(fd, &st) != 0 || st.st_size <= 0) {
+        LOGW("Failed to stat '%s'\n", model_path);
+        close(fd);
+        return NULL;
+    }
+    void *data = mmap(NULL, (size_t) st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    // The mapping keeps its own reference to the file.
+    close(fd);
+    if (data == MAP_FAILED) {
+        LOGW("Failed to map '%s'\n", model_path);
+        return NULL;
+    }
+    // The loader walks the file front to back once, so ask for aggressive readahead.
+    madvise(data, (size_t) st.st_size, MADV_SEQUENTIAL);
+    madvise(data, (size_t) st.st_size, MADV_WILLNEED);
+
+    struct mapped_model *model = malloc(sizeof(*model));
+    if (!model) {
+        munmap(data, (size_t) st.st_size);
+        return NULL;
+    }
+    model->data = data;
+    model->size = (size_t) st.st_size;
+    model->offset = 0;
+
+    LOGI("Loading model from mapping of '%s' (%lld bytes)\n", model_path, (long long) st.st_size);
+    whisper_model_loader loader = {
+            .context = model,
+            .read = &mapped_read,
+            .eof = &mapped_is_eof,
+            .close = &mapped_close
+    };
+    // whisper calls close once it has read the model, whether or not loading succeeded.
+    return whisper_init_with_params(&loader, whisper_context_default_params());
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_whispercpp_whisper_WhisperLib_00024Companion_initContextMapped(
+        JNIEnv *env, jobject thiz, jstring model_path_str) {
+    UNUSED(thiz);
+    struct whisper_context *context = NULL;
+    const char *model_path_chars = (*env)->GetStringUTFChars(env, model_path_str, NULL);
+    context = whisper_init_from_mapped_file(model_path_chars);
+    (*env)->ReleaseStringUTFChars(env, model_path_str, model_path_chars);
+    return (jlong) context;
+}
+
+// Benchmark helper: asks the kernel to drop the file's clean pages from the page cache, so the next
+// load reads from storage. Needs no privileges, but pages mapped elsewhere may stay resident.
+JNIEXPORT jboolean JNICALL
+Java_com_whispercpp_whisper_WhisperLib_00024Companion_dropFileCache(
+        JNIEnv *env, jobject thiz, jstring path_str) {
+    UNUSED(thiz);
+    const char *path_chars = (*env)->GetStringUTFChars(env, path_str, NULL);
+    int fd = open(path_chars, O_RDONLY | O_CLOEXEC);
+    (*env)->ReleaseStringUTFChars(env, path_str, path_chars);
+    if (fd < 0) {
+        return JNI_FALSE;
+    }
+    int result = posix_fadvise(fd, 0, 0, POSIX_FADV_DONTNEED);
+    close(fd);
+    return result == 0 ? JNI_TRUE : JNI_FALSE;
+}
+
 JNIEXPORT void JNICALL
 Java_com_whispercpp_whisper_WhisperLib_00024Companion_freeContext(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
@@ -161,71 +274,368 @@ Java_com_whispercpp_whisper_WhisperLib_00024Companion_freeContext(
     whisper_free(context);
 }
 
-JNIEXPORT void JNICALL
-Java_com_whispercpp_whisper_WhisperLib_00024Companion_fullTranscribe(
-        JNIEnv *env, jobject thiz, jlong context_ptr, jint num_threads, jfloatArray audio_data) {
-    UNUSED(thiz);
-    struct whisper_context *context = (struct whisper_context *) context_ptr;
-    jfloat *audio_data_arr = (*env)->GetFloatArrayElements(env, audio_data, NULL);
-    const jsize audio_data_length = (*env)->GetArrayLength(env, audio_data);
+// Per-call state shared with whisper's callbacks. The abort flag is a 4-byte direct ByteBuffer owned
+// by the Kotlin caller, which writes a non-zero value to it when the transcription is cancelled.
+// whisper checks it before each encoder window and ggml between graph nodes, so an aborted call
+// returns within one node's worth of work. Progress is forwarded to the listener on the calling
+// thread, at most every PROGRESS_MIN_INTERVAL_MS and only when the percentage has moved.
+#define PROGRESS_MIN_INTERVAL_MS 250
+
+struct transcribe_callbacks {
+    const int32_t * abort_flag;
+    JNIEnv * env;
+    jobject listener;
+    jmethodID mid_on_progress;
+    int last_progress;
+    int64_t last_progress_ms;
+};
+
+static int64_t monotonic_ms(void) {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
+
+static bool abort_requested(void * user_data) {
+    const struct transcribe_callbacks * callbacks = (const struct transcribe_callbacks *) user_data;
+    return callbacks->abort_flag != NULL && __atomic_load_n(callbacks->abort_flag, __ATOMIC_RELAXED) != 0;
+}
+
+static bool encoder_begin_unless_aborted(struct whisper_context * ctx, struct whisper_state * state, void * user_data) {
+    UNUSED(ctx);
+    UNUSED(state);
+    return !abort_requested(user_data);
+}
+
+static void report_progress(struct whisper_context * ctx, struct whisper_state * state, int progress, void * user_data) {
+    UNUSED(ctx);
+    UNUSED(state);
+    struct transcribe_callbacks * callbacks = (struct transcribe_callbacks *) user_data;
+    int64_t now = monotonic_ms();
+    if (progress <= callbacks->last_progress || now - callbacks->last_progress_ms < PROGRESS_MIN_INTERVAL_MS) {
+        return;
+    }
+    callbacks->last_progress = progress;
+    callbacks->last_progress_ms = now;
+    JNIEnv * env = callbacks->env;
+    (*env)->CallVoidMethod(env, callbacks->listener, callbacks->mid_on_progress, progress);
+    if ((*env)->ExceptionCheck(env)) {
+        // A throwing listener must not unwind through whisper; report it and keep decoding.
+        (*env)->ExceptionDescribe(env);
+        (*env)->ExceptionClear(env);
+    }
+}
+
+static void set_callbacks(JNIEnv * env, struct whisper_full_params * params,
+                          struct transcribe_callbacks * callbacks, jobject abort_flag, jobject listener) {
+    memset(callbacks, 0, sizeof(*callbacks));
+    callbacks->env = env;
+    callbacks->last_progress = -1;
+    if (abort_flag != NULL) {
+        callbacks->abort_flag = (const int32_t *) (*env)->GetDirectBufferAddress(env, abort_flag);
+    }
+    if (callbacks->abort_flag != NULL) {
+        params->abort_callback = abort_requested;
+        params->abort_callback_user_data = callbacks;
+        params->encoder_begin_callback = encoder_begin_unless_aborted;
+        params->encoder_begin_callback_user_data = callbacks;
+    }
+    if (listener != NULL) {
+        jclass cls = (*env)->GetObjectClass(env, listener);
+        callbacks->listener = listener;
+        callbacks->mid_on_progress = (*env)->GetMethodID(env, cls, "onProgress", "(I)V");
+        (*env)->DeleteLocalRef(env, cls);
+        params->progress_callback = report_progress;
+        params->progress_callback_user_data = callbacks;
+    }
+}
+
+#define LANGUAGE_MAX 16
+
+// Builds whisper_full's parameters from a com.whispercpp.whisper.WhisperDecodeParams. A beam size
+// above one selects beam search; turning the temperature fallback off means a window is decoded
+// once even if it looks like a failed decode; a null language asks whisper to detect it. whisper
+// keeps the language pointer, so it is copied into the caller's buffer.
+static struct whisper_full_params transcribe_params(JNIEnv *env, jobject decode_params, int num_threads,
+                                                    char language[LANGUAGE_MAX]) {
+    jclass cls = (*env)->GetObjectClass(env, decode_params);
+    jint beam_size = (*env)->GetIntField(env, decode_params, (*env)->GetFieldID(env, cls, "beamSize", "I"));
+    jint best_of = (*env)->GetIntField(env, decode_params, (*env)->GetFieldID(env, cls, "bestOf", "I"));
+    jboolean fallback = (*env)->GetBooleanField(env, decode_params,
+            (*env)->GetFieldID(env, cls, "temperatureFallback", "Z"));
+    jint max_tokens = (*env)->GetIntField(env, decode_params,
+            (*env)->GetFieldID(env, cls, "maxTokensPerSegment", "I"));
+    jstring language_str = (jstring) (*env)->GetObjectField(env, decode_params,
+            (*env)->GetFieldID(env, cls, "language", "Ljava/lang/String;"));
+    (*env)->DeleteLocalRef(env, cls);
+
+    if (language_str != NULL) {
+        const char *chars = (*env)->GetStringUTFChars(env, language_str, NULL);
+        strncpy(language, chars, LANGUAGE_MAX - 1);
+        language[LANGUAGE_MAX - 1] = '\0';
+        (*env)->ReleaseStringUTFChars(env, language_str, chars);
+        (*env)->DeleteLocalRef(env, language_str);
+    } else {
+        strcpy(language, "auto");
+    }
 
     // The below adapted from the Objective-C iOS sample
-    struct whisper_full_params params = whisper_full_default_params(WHISPER_SAMPLING_GREEDY);
+    struct whisper_full_params params = whisper_full_default_params(
+            beam_size > 1 ? WHISPER_SAMPLING_BEAM_SEARCH : WHISPER_SAMPLING_GREEDY);
     params.print_realtime = true;
     params.print_progress = false;
     params.print_timestamps = true;
     params.print_special = false;
     params.translate = false;
-    params.language = "en";
+    params.language = language;
     params.n_threads = num_threads;
     params.offset_ms = 0;
     params.no_context = true;
     params.single_segment = false;
+    params.max_tokens = max_tokens;
+    params.greedy.best_of = max(1, best_of);
+    params.beam_search.beam_size = max(1, beam_size);
+    if (!fallback) {
+        params.temperature_inc = 0.0f;
+    }
+    LOGI("Decoding with beam %d, best of %d, fallback %s, max tokens %d, language %s, %d threads",
+         params.beam_search.beam_size, params.greedy.best_of, fallback ? "on" : "off", max_tokens,
+         language, num_threads);
+    return params;
+}
+
+// Audio arrives either as a float[] or as a direct ByteBuffer of 16-bit little-endian PCM covering
+// its whole capacity, typically a memory-mapped queue file. PCM is converted once into a native
+// buffer, so the recording never has to exist as floats on the Java heap.
+struct audio_samples {
+    jobject source;
+    float * data;
+    int count;
+    bool pinned;
+};
+
+static bool get_audio_samples(JNIEnv *env, jobject audio, struct audio_samples *out) {
+    out->source = audio;
+    out->pinned = false;
+    // Before Android 10, GetDirectBufferAddress does not check that its argument is a Buffer, so a
+    // float[] must never reach it.
+    jclass buffer_class = (*env)->FindClass(env, "java/nio/ByteBuffer");
+    jboolean is_buffer = (*env)->IsInstanceOf(env, audio, buffer_class);
+    (*env)->DeleteLocalRef(env, buffer_class);
+    if (is_buffer) {
+        const int16_t *pcm = (const int16_t *) (*env)->GetDirectBufferAddress(env, audio);
+        if (pcm == NULL) {
+            LOGW("PCM16 audio is not in a direct buffer");
+            return false;
+        }
+        out->count = (int) ((*env)->GetDirectBufferCapacity(env, audio) / 2);
+        out->data = (float *) malloc((size_t) max(1, out->count) * sizeof(float));
+        if (out->data == NULL) {
+            LOGW("Couldn't allocate %d samples", out->count);
+            return false;
+        }
+        for (int i = 0; i < out->count; i++) {
+            out->data[i] = pcm[i] * (1.0f / 32768.0f);
+        }
+        return true;
+    }
+    out->count = (*env)->GetArrayLength(env, (jfloatArray) audio);
+    out->data = (*env)->GetFloatArrayElements(env, (jfloatArray) audio, NULL);
+    out->pinned = true;
+    return out->data != NULL;
+}
+
+static void release_audio_samples(JNIEnv *env, struct audio_samples *samples) {
+    if (samples->pinned) {
+        (*env)->ReleaseFloatArrayElements(env, (jfloatArray) samples->source, samples->data, JNI_ABORT);
+    } else {
+        free(samples->data);
+    }
+}
+
+// Returns whisper_full's result: 0 on success, non-zero when it failed or was aborted.
+JNIEXPORT jint JNICALL
+Java_com_whispercpp_whisper_WhisperLib_00024Companion_fullTranscribe(
+        JNIEnv *env, jobject thiz, jlong context_ptr, jint num_threads, jobject audio,
+        jobject decode_params, jobject abort_flag, jobject progress_listener) {
+    UNUSED(thiz);
+    struct whisper_context *context = (struct whisper_context *) context_ptr;
+    struct audio_samples samples;
+    if (!get_audio_samples(env, audio, &samples)) {
+        return -1;
+    }
+
+    char language[LANGUAGE_MAX];
+    struct whisper_full_params params = transcribe_params(env, decode_params, num_threads, language);
+    struct transcribe_callbacks callbacks;
+    set_callbacks(env, &params, &callbacks, abort_flag, progress_listener);
 
     whisper_reset_timings(context);
 
     LOGI("About to run whisper_full");
-    if (whisper_full(context, params, audio_data_arr, audio_data_length) != 0) {
-        LOGI("Failed to run the model");
+    int result = whisper_full(context, params, samples.data, samples.count);
+    if (result != 0) {
+        LOGI("%s", abort_requested(&callbacks) ? "Aborted" : "Failed to run the model");
     } else {
         whisper_print_timings(context);
     }
-    (*env)->ReleaseFloatArrayElements(env, audio_data, audio_data_arr, JNI_ABORT);
+    release_audio_samples(env, &samples);
+    return result;
 }
 
-JNIEXPORT jint JNICALL
-Java_com_whispercpp_whisper_WhisperLib_00024Companion_getTextSegmentCount(
+// Decoder states share the context's weights, so several of them can run whisper_full_with_state
+// on different threads at once.
+JNIEXPORT jlong JNICALL
+Java_com_whispercpp_whisper_WhisperLib_00024Companion_initState(
         JNIEnv *env, jobject thiz, jlong context_ptr) {
     UNUSED(env);
     UNUSED(thiz);
     struct whisper_context *context = (struct whisper_context *) context_ptr;
-    return whisper_full_n_segments(context);
+    return (jlong) whisper_init_state(context);
 }
 
-JNIEXPORT jstring JNICALL
-Java_com_whispercpp_whisper_WhisperLib_00024Companion_getTextSegment(
-        JNIEnv *env, jobject thiz, jlong context_ptr, jint index) {
+JNIEXPORT void JNICALL
+Java_com_whispercpp_whisper_WhisperLib_00024Companion_freeState(
+        JNIEnv *env, jobject thiz, jlong state_ptr) {
+    UNUSED(env);
     UNUSED(thiz);
-    struct whisper_context *context = (struct whisper_context *) context_ptr;
-    const char *text = whisper_full_get_segment_text(context, index);
-    jstring string = (*env)->NewStringUTF(env, text);
-    return string;
+    whisper_free_state((struct whisper_state *) state_ptr);
 }
 
-JNIEXPORT jlong JNICALL
-Java_com_whispercpp_whisper_WhisperLib_00024Companion_getTextSegmentT0(
-        JNIEnv *env, jobject thiz, jlong context_ptr, jint index) {
+JNIEXPORT jint JNICALL
+Java_com_whispercpp_whisper_WhisperLib_00024Companion_fullTranscribeWithState(
+        JNIEnv *env, jobject thiz, jlong context_ptr, jlong state_ptr, jint num_threads,
+        jobject audio, jobject decode_params, jobject abort_flag, jobject progress_listener) {
     UNUSED(thiz);
     struct whisper_context *context = (struct whisper_context *) context_ptr;
-    return whisper_full_get_segment_t0(context, index);
+    struct whisper_state *state = (struct whisper_state *) state_ptr;
+    struct audio_samples samples;
+    if (!get_audio_samples(env, audio, &samples)) {
+        return -1;
+    }
+
+    char language[LANGUAGE_MAX];
+    struct whisper_full_params params = transcribe_params(env, decode_params, num_threads, language);
+    params.print_realtime = false;
+    params.print_timestamps = false;
+    struct transcribe_callbacks callbacks;
+    set_callbacks(env, &params, &callbacks, abort_flag, progress_listener);
+
+    int result = whisper_full_with_state(context, state, params, samples.data, samples.count);
+    if (result != 0 && !abort_requested(&callbacks)) {
+        LOGW("whisper_full_with_state failed: %d", result);
+    }
+    release_audio_samples(env, &samples);
+    return result;
 }
 
-JNIEXPORT jlong JNICALL
-Java_com_whispercpp_whisper_WhisperLib_00024Companion_getTextSegmentT1(
-        JNIEnv *env, jobject thiz, jlong context_ptr, jint index) {
+// Reads a finished decode from state, or from the context's default state when state is NULL.
+static int result_segment_count(struct whisper_context *ctx, struct whisper_state *state) {
+    return state ? whisper_full_n_segments_from_state(state) : whisper_full_n_segments(ctx);
+}
+
+static const char *result_segment_text(struct whisper_context *ctx, struct whisper_state *state, int i) {
+    return state ? whisper_full_get_segment_text_from_state(state, i) : whisper_full_get_segment_text(ctx, i);
+}
+
+// Mean probability of the segment's text tokens; timestamp and other special tokens are skipped.
+static float result_segment_probability(struct whisper_context *ctx, struct whisper_state *state, int i) {
+    const whisper_token eot = whisper_token_eot(ctx);
+    const int n_tokens = state ? whisper_full_n_tokens_from_state(state, i) : whisper_full_n_tokens(ctx, i);
+    float sum = 0.0f;
+    int count = 0;
+    for (int j = 0; j < n_tokens; j++) {
+        whisper_token id = state ? whisper_full_get_token_id_from_state(state, i, j)
+                                 : whisper_full_get_token_id(ctx, i, j);
+        if (id >= eot) {
+            continue;
+        }
+        sum += state ? whisper_full_get_token_p_from_state(state, i, j) : whisper_full_get_token_p(ctx, i, j);
+        count++;
+    }
+    return count > 0 ? sum / (float) count : 0.0f;
+}
+
+// Packs every segment of a finished decode into one WhisperResult, so Kotlin needs a single JNI
+// crossing instead of four per segment. Texts are concatenated as raw UTF-8 with an offset per
+// segment, which also keeps characters outside the BMP intact (NewStringUTF expects modified UTF-8).
+static jobject build_result(JNIEnv *env, struct whisper_context *ctx, struct whisper_state *state,
+                            jboolean with_probabilities) {
+    const int n = result_segment_count(ctx, state);
+    jlong *starts = malloc((size_t) max(1, n) * sizeof(jlong));
+    jlong *ends = malloc((size_t) max(1, n) * sizeof(jlong));
+    jint *offsets = malloc((size_t) (n + 1) * sizeof(jint));
+    jfloat *probabilities = with_probabilities ? malloc((size_t) max(1, n) * sizeof(jfloat)) : NULL;
+    jobject result = NULL;
+    if (!starts || !ends || !offsets || (with_probabilities && !probabilities)) {
+        LOGW("Out of memory packing %d segments", n);
+        goto done;
+    }
+
+    size_t total = 0;
+    for (int i = 0; i < n; i++) {
+        // whisper reports times in 10 ms units.
+        starts[i] = (state ? whisper_full_get_segment_t0_from_state(state, i) : whisper_full_get_segment_t0(ctx, i)) * 10;
+        ends[i] = (state ? whisper_full_get_segment_t1_from_state(state, i) : whisper_full_get_segment_t1(ctx, i)) * 10;
+        offsets[i] = (jint) total;
+        total += strlen(result_segment_text(ctx, state, i));
+        if (probabilities) {
+            probabilities[i] = result_segment_probability(ctx, state, i);
+        }
+    }
+    offsets[n] = (jint) total;
+
+    jbyteArray text = (*env)->NewByteArray(env, (jsize) total);
+    jlongArray start_array = (*env)->NewLongArray(env, n);
+    jlongArray end_array = (*env)->NewLongArray(env, n);
+    jintArray offset_array = (*env)->NewIntArray(env, n + 1);
+    jfloatArray probability_array = probabilities ? (*env)->NewFloatArray(env, n) : NULL;
+    if (!text || !start_array || !end_array || !offset_array || (probabilities && !probability_array)) {
+        goto done;
+    }
+    for (int i = 0; i < n; i++) {
+        (*env)->SetByteArrayRegion(env, text, offsets[i], offsets[i + 1] - offsets[i],
+                                   (const jbyte *) result_segment_text(ctx, state, i));
+    }
+    (*env)->SetLongArrayRegion(env, start_array, 0, n, starts);
+    (*env)->SetLongArrayRegion(env, end_array, 0, n, ends);
+    (*env)->SetIntArrayRegion(env, offset_array, 0, n + 1, offsets);
+    if (probability_array) {
+        (*env)->SetFloatArrayRegion(env, probability_array, 0, n, probabilities);
+    }
+
+    jclass result_class = (*env)->FindClass(env, "com/whispercpp/whisper/WhisperResult");
+    if (!result_class) {
+        goto done;
+    }
+    jmethodID init = (*env)->GetMethodID(env, result_class, "<init>", "([J[J[B[I[F)V");
+    if (init) {
+        result = (*env)->NewObject(env, result_class, init, start_array, end_array, text, offset_array,
+                                   probability_array);
+    }
+    (*env)->DeleteLocalRef(env, result_class);
+
+done:
+    free(starts);
+    free(ends);
+    free(offsets);
+    free(probabilities);
+    return result;
+}
+
+JNIEXPORT jobject JNICALL
+Java_com_whispercpp_whisper_WhisperLib_00024Companion_getResult(
+        JNIEnv *env, jobject thiz, jlong context_ptr, jboolean with_probabilities) {
     UNUSED(thiz);
-    struct whisper_context *context = (struct whisper_context *) context_ptr;
-    return whisper_full_get_segment_t1(context, index);
+    return build_result(env, (struct whisper_context *) context_ptr, NULL, with_probabilities);
+}
+
+JNIEXPORT jobject JNICALL
+Java_com_whispercpp_whisper_WhisperLib_00024Companion_getStateResult(
+        JNIEnv *env, jobject thiz, jlong context_ptr, jlong state_ptr, jboolean with_probabilities) {
+    UNUSED(thiz);
+    return build_result(env, (struct whisper_context *) context_ptr, (struct whisper_state *) state_ptr,
+                        with_probabilities);
 }
 
 JNIEXPORT jstring JNICALL